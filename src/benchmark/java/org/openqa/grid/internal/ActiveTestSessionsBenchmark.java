@@ -0,0 +1,85 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+
+/**
+ * Routing a command to its session, {@link ActiveTestSessions#findSessionByExternalKey}, from the
+ * path of the request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ActiveTestSessionsBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int sessions;
+
+  private final ActiveTestSessions activeSessions = new ActiveTestSessions();
+  private String[] paths;
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    SyntheticGrid grid = new SyntheticGrid(1, 1);
+    TestSlot slot = grid.nodes.get(0).getTestSlots().get(0);
+    paths = new String[sessions];
+    for (int i = 0; i < sessions; i++) {
+      TestSession session =
+          new TestSession(slot, new HashMap<String, Object>(), new DefaultTimeSource());
+      activeSessions.add(session);
+      String key = "session-" + i;
+      paths[i] = "/session/" + key + "/element/0/click";
+      session.setExternalKey(new ExternalSessionKey(key));
+    }
+  }
+
+  /**
+   * with a key extracted from the path.
+   */
+  @Benchmark
+  public TestSession findSessionByExternalKey() {
+    String path = paths[next++ % paths.length];
+    return activeSessions.findSessionByExternalKey(ExternalSessionKey.fromWebDriverRequest(path));
+  }
+
+  /**
+   * with the session id read in place in the path.
+   */
+  @Benchmark
+  public TestSession findSessionBySessionIdInPath() {
+    String path = paths[next++ % paths.length];
+    int start = ExternalSessionKey.webDriverSessionIdStart(path);
+    return activeSessions.findSessionByExternalKey(
+        path, start, ExternalSessionKey.webDriverSessionIdEnd(path, start));
+  }
+}
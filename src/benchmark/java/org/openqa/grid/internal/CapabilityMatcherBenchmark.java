@@ -0,0 +1,121 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.internal.utils.CapabilityMatcher;
+import org.openqa.grid.internal.utils.DefaultCapabilityMatcher;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matching a request against every slot of the grid, with the matcher used by the hub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CapabilityMatcherBenchmark {
+
+  @Param({"10", "100", "800"})
+  public int nodes;
+
+  @Param({"5"})
+  public int slotsPerNode;
+
+  private final CapabilityMatcher matcher = new DefaultCapabilityMatcher();
+  private final List<Map<String, Object>> slots = new ArrayList<Map<String, Object>>();
+  private final List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+  private final List<RequestedCapabilities> compiledRequests =
+      new ArrayList<RequestedCapabilities>();
+  private final List<TestSlot> testSlots = new ArrayList<TestSlot>();
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    SyntheticGrid grid = new SyntheticGrid(nodes, slotsPerNode);
+    for (RemoteProxy proxy : grid.proxies) {
+      for (TestSlot slot : proxy.getTestSlots()) {
+        slots.add(slot.getCapabilities());
+        testSlots.add(slot);
+      }
+    }
+    for (int i = 0; i < 16; i++) {
+      requests.add(SyntheticGrid.requestedCapabilities(i));
+      compiledRequests.add(RequestedCapabilities.of(SyntheticGrid.requestedCapabilities(i)));
+    }
+  }
+
+  /**
+   * the matcher on plain maps, as for a custom matcher.
+   */
+  @Benchmark
+  public int matcherOnAllSlots() {
+    Map<String, Object> request = requests.get(next++ & 15);
+    int matches = 0;
+    for (Map<String, Object> slot : slots) {
+      if (matcher.matches(slot, request)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * the compiled request against the pre-processed slot capabilities, without the match cache.
+   */
+  @Benchmark
+  public int compiledMatchOnAllSlots() {
+    RequestedCapabilities request = compiledRequests.get(next++ & 15);
+    int matches = 0;
+    for (TestSlot slot : testSlots) {
+      if (slot.computeMatch(request)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * the same, through TestSlot.matches, which skips the match cache for the default matcher.
+   */
+  @Benchmark
+  public int slotMatchOnAllSlots() {
+    RequestedCapabilities request = compiledRequests.get(next++ & 15);
+    int matches = 0;
+    for (TestSlot slot : testSlots) {
+      if (slot.matches(request)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import com.google.common.base.Predicate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.internal.listeners.KeyedPrioritizer;
+import org.openqa.grid.internal.listeners.Prioritizer;
+import org.openqa.grid.web.servlet.handler.RequestHandler;
+
+import java.util.Map;
+
+/**
+ * Going through the new session queue when the grid is full: none of the waiting requests can be
+ * assigned, which is when the queue is processed the most often.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NewSessionRequestQueueBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int queued;
+
+  /**
+   * the number of different capabilities requested.
+   */
+  @Param({"1", "16"})
+  public int kinds;
+
+  @Param({"100"})
+  public int nodes;
+
+  /**
+   * none, a prioritizer that only compares requests, or one giving them a priority key.
+   */
+  @Param({"none", "compare", "keyed"})
+  public String prioritizer;
+
+  private final NewSessionRequestQueue queue = new NewSessionRequestQueue();
+  private SyntheticGrid grid;
+  private TestSlot releasedSlot;
+  private int visited;
+
+  private final Predicate<RequestHandler> noCapacity = new Predicate<RequestHandler>() {
+    public boolean apply(RequestHandler handler) {
+      visited++;
+      return false;
+    }
+  };
+
+  @Setup
+  public void setUp() {
+    grid = new SyntheticGrid(nodes, 1);
+    if ("compare".equals(prioritizer)) {
+      grid.prioritizer = new ByPriority();
+    } else if ("keyed".equals(prioritizer)) {
+      grid.prioritizer = new KeyedByPriority();
+    }
+    releasedSlot = grid.nodes.get(0).getTestSlots().get(0);
+    for (int i = 0; i < queued; i++) {
+      Map<String, Object> capabilities = SyntheticGrid.requestedCapabilities(i % kinds);
+      capabilities.put(PRIORITY, i % 10);
+      queue.add(grid.newSessionRequest(capabilities));
+    }
+  }
+
+  /**
+   * a full pass over the queue.
+   */
+  @Benchmark
+  public int processQueue() {
+    visited = 0;
+    queue.processQueue(noCapacity, grid.prioritizer);
+    return visited;
+  }
+
+  /**
+   * the pass made when a slot is released.
+   */
+  @Benchmark
+  public int processQueueForReleasedSlot() {
+    visited = 0;
+    queue.processQueue(releasedSlot, noCapacity, grid.prioritizer);
+    return visited;
+  }
+
+  private static final String PRIORITY = "priority";
+
+  private static int priorityOf(Map<String, Object> capabilities) {
+    return (Integer) capabilities.get(PRIORITY);
+  }
+
+  private static class ByPriority implements Prioritizer {
+    public int compareTo(Map<String, Object> a, Map<String, Object> b) {
+      return Integer.compare(priorityOf(a), priorityOf(b));
+    }
+  }
+
+  private static class KeyedByPriority extends ByPriority implements KeyedPrioritizer<Integer> {
+    public Integer getPriorityKey(Map<String, Object> capabilities) {
+      return priorityOf(capabilities);
+    }
+  }
+}
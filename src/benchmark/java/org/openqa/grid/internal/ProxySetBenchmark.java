@@ -0,0 +1,101 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Placing a new session on the grid with {@link ProxySet#getNewSession(java.util.Map)}, and
+ * releasing its slot, on a grid where some of the slots are already busy. Also the changes of the
+ * set itself, when the nodes register again after a network issue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProxySetBenchmark {
+
+  @Param({"10", "100", "800"})
+  public int nodes;
+
+  @Param({"1", "5"})
+  public int slotsPerNode;
+
+  /**
+   * the percentage of the slots hosting a session before the benchmark starts.
+   */
+  @Param({"0", "90", "100"})
+  public int busyPercent;
+
+  private SyntheticGrid grid;
+  private final List<RequestedCapabilities> requests = new ArrayList<RequestedCapabilities>();
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    grid = new SyntheticGrid(nodes, slotsPerNode);
+    for (int i = 0; i < 16; i++) {
+      requests.add(RequestedCapabilities.of(SyntheticGrid.requestedCapabilities(i)));
+    }
+    int busy = nodes * slotsPerNode * busyPercent / 100;
+    for (BaseRemoteProxy node : grid.nodes) {
+      for (TestSlot slot : node.getTestSlots()) {
+        if (busy-- <= 0) {
+          return;
+        }
+        slot.getNewSession(slot.getCapabilities());
+      }
+    }
+  }
+
+  @Benchmark
+  public RemoteProxy reregister() {
+    BaseRemoteProxy node = grid.nodes.get(next++ % nodes);
+    RemoteProxy removed = grid.proxies.remove(node);
+    grid.proxies.add(node);
+    return removed;
+  }
+
+  @Benchmark
+  public RemoteProxy getProxyById() {
+    return grid.proxies.getProxyById(grid.nodes.get(next++ % nodes).getId());
+  }
+
+  @Benchmark
+  public TestSession getNewSessionAndRelease() {
+    TestSession session = grid.proxies.getNewSession(requests.get(next++ & 15));
+    if (session != null) {
+      session.getSlot().doFinishRelease();
+    }
+    return session;
+  }
+}
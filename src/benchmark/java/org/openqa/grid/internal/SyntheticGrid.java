@@ -0,0 +1,161 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.listeners.Prioritizer;
+import org.openqa.grid.internal.utils.GridHubConfiguration;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+import org.openqa.grid.web.servlet.handler.RequestHandler;
+import org.openqa.grid.web.servlet.handler.RequestType;
+import org.openqa.grid.web.servlet.handler.SeleniumBasedRequest;
+import org.openqa.selenium.remote.CapabilityType;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A hub without its web part: a ProxySet of nodes that never get contacted, and a registry
+ * answering what the benchmarked code asks for. The nodes offer a mix of browsers and platforms,
+ * each with all its slots declared with the same capabilities.
+ * <p/>
+ * The info logging of the grid is turned off, the hub logs each node it tries when placing a
+ * session and writing that to the console would be most of what gets measured.
+ */
+final class SyntheticGrid {
+
+  static final String[] BROWSERS = {"chrome", "firefox", "internet explorer", "safari"};
+  static final String[] PLATFORMS = {"LINUX", "WINDOWS", "MAC"};
+
+  // held so that the level is not lost when the logger is garbage collected.
+  private static final Logger GRID_LOGGER = Logger.getLogger("org.openqa.grid");
+
+  static {
+    GRID_LOGGER.setLevel(Level.WARNING);
+  }
+
+  final GridHubConfiguration configuration = new GridHubConfiguration();
+  final ProxySet proxies = new ProxySet(false);
+  final HubServices services = new HubServices();
+  final List<BaseRemoteProxy> nodes = new ArrayList<BaseRemoteProxy>();
+  final HubRegistryInterface registry;
+  // the prioritizer of the hub, none by default.
+  Prioritizer prioritizer;
+
+  SyntheticGrid(int nodeCount, int slotsPerNode) {
+    registry = (HubRegistryInterface) Proxy.newProxyInstance(
+        SyntheticGrid.class.getClassLoader(),
+        new Class<?>[]{HubRegistryInterface.class, HubServicesProvider.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getConfiguration".equals(name)) {
+              return configuration;
+            } else if ("getCapabilityMatcher".equals(name)) {
+              return configuration.getCapabilityMatcher();
+            } else if ("getPrioritizer".equals(name)) {
+              return prioritizer;
+            } else if ("getAllProxies".equals(name)) {
+              return proxies;
+            } else if ("getServices".equals(name)) {
+              return services;
+            } else if ("hashCode".equals(name)) {
+              return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+              return proxy == args[0];
+            } else if ("toString".equals(name)) {
+              return "synthetic registry";
+            }
+            return null;
+          }
+        });
+
+    for (int i = 0; i < nodeCount; i++) {
+      RegistrationRequest request = new RegistrationRequest();
+      request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://node" + i + ":5555");
+      request.getConfiguration().put(RegistrationRequest.MAX_SESSION, slotsPerNode);
+      DesiredCapabilities capability = new DesiredCapabilities();
+      capability.setBrowserName(BROWSERS[i % BROWSERS.length]);
+      capability.setCapability(CapabilityType.PLATFORM, PLATFORMS[i % PLATFORMS.length]);
+      capability.setCapability(RegistrationRequest.MAX_INSTANCES, slotsPerNode);
+      request.addDesiredCapability(capability);
+      BaseRemoteProxy node = new BaseRemoteProxy(request, registry);
+      nodes.add(node);
+      proxies.add(node);
+    }
+  }
+
+  /**
+   * @return the capabilities of the i-th kind of request, each kind matching some of the nodes.
+   */
+  static Map<String, Object> requestedCapabilities(int i) {
+    Map<String, Object> capabilities = new HashMap<String, Object>();
+    capabilities.put(CapabilityType.BROWSER_NAME, BROWSERS[i % BROWSERS.length]);
+    capabilities.put(CapabilityType.PLATFORM,
+                     i % 2 == 0 ? "ANY" : PLATFORMS[(i / 2) % PLATFORMS.length]);
+    capabilities.put(CapabilityType.VERSION, "");
+    return capabilities;
+  }
+
+  /**
+   * @return a handler for a new session request, as created by the hub servlet.
+   */
+  RequestHandler newSessionRequest(Map<String, Object> capabilities) {
+    HttpServletRequest servletRequest = (HttpServletRequest) Proxy.newProxyInstance(
+        SyntheticGrid.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+          }
+        });
+    SeleniumBasedRequest request =
+        new SeleniumBasedRequest(servletRequest, registry, RequestType.START_SESSION,
+                                 RequestedCapabilities.of(capabilities)) {
+          @Override
+          public RequestType extractRequestType() {
+            return RequestType.START_SESSION;
+          }
+
+          @Override
+          public ExternalSessionKey extractSession() {
+            return null;
+          }
+
+          @Override
+          public Map<String, Object> extractDesiredCapability() {
+            return getDesiredCapabilities();
+          }
+
+          @Override
+          public String getNewSessionRequestedCapability(TestSession session) {
+            return null;
+          }
+        };
+    return new RequestHandler(request, null, registry);
+  }
+}
@@ -20,47 +20,85 @@ package org.openqa.grid.internal;
 import net.jcip.annotations.ThreadSafe;
 
 import org.openqa.grid.common.exception.GridException;
+import org.openqa.grid.internal.utils.GridHubConfiguration;
 
 import java.util.Collections;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
  * The set of active test sessions.
+ *
+ * Sessions are indexed by internal and external key so that routing a command to its session
+ * doesn't depend on the number of sessions running on the grid. The external key index is kept
+ * up to date by {@link TestSession#setExternalKey(ExternalSessionKey)}.
+ * <p/>
+ * The external key index can be queried with the characters of the key where they appear in the
+ * request, see {@link SessionIdLookup}, the key itself is only created with the session.
  */
 @ThreadSafe
-class ActiveTestSessions {
+class ActiveTestSessions implements SessionIdLookup {
 
   private static final Logger log = Logger.getLogger(ActiveTestSessions.class.getName());
 
-  private final Set<TestSession> activeTestSessions = new CopyOnWriteArraySet<TestSession>();
+  private final Set<TestSession> activeTestSessions =
+      Collections.newSetFromMap(new ConcurrentHashMap<TestSession, Boolean>());
 
-  private final
-  Queue<ExternalSessionKey>
-      terminatedSessions =
-      new ConcurrentLinkedQueue<ExternalSessionKey>();
-  private final
-  Map<ExternalSessionKey, SessionTerminationReason>
-      reasons =
-      new ConcurrentHashMap<ExternalSessionKey, SessionTerminationReason>();
+  private final ConcurrentMap<String, TestSession> byInternalKey =
+      new ConcurrentHashMap<String, TestSession>();
+  private final ExternalKeyIndex byExternalKey = new ExternalKeyIndex();
 
+  // created with the first termination, sized by the configuration of the hub.
+  private volatile TerminatedSessions terminatedSessions;
 
   public boolean add(TestSession testSession) {
     final boolean added = activeTestSessions.add(testSession);
     if (!added) {
       log.severe("Error adding session : " + testSession);
+      return false;
     }
-    return added;
+    byInternalKey.put(testSession.getInternalKey(), testSession);
+    testSession.setActiveSessions(this);
+    ExternalSessionKey externalKey = testSession.getExternalKey();
+    if (externalKey != null) {
+      externalKeyAssigned(testSession, null, externalKey);
+    }
+    return true;
   }
 
   public boolean remove(TestSession o, SessionTerminationReason reason) {
     updateReason(o, reason);
-    return activeTestSessions.remove(o);
+    boolean removed = activeTestSessions.remove(o);
+    if (removed) {
+      o.terminated(reason);
+    }
+    byInternalKey.remove(o.getInternalKey(), o);
+    ExternalSessionKey externalKey = o.getExternalKey();
+    if (externalKey != null) {
+      byExternalKey.remove(externalKey, o);
+    }
+    return removed;
+  }
+
+  /**
+   * Keeps the external key index in sync when the remote assigns ( or changes ) the key of a
+   * session that is already active.
+   */
+  void externalKeyAssigned(TestSession session, ExternalSessionKey previous,
+                           ExternalSessionKey current) {
+    if (previous != null) {
+      byExternalKey.remove(previous, session);
+    }
+    if (current == null || !activeTestSessions.contains(session)) {
+      return;
+    }
+    byExternalKey.put(current, session);
+    // the session may have been removed concurrently, don't leave a stale entry behind.
+    if (!activeTestSessions.contains(session)) {
+      byExternalKey.remove(current, session);
+    }
   }
 
   private void updateReason(TestSession o, SessionTerminationReason reason) {
@@ -73,38 +111,55 @@ class ActiveTestSessions {
       return;
     }
 
-    terminatedSessions.add(o.getExternalKey());
-    reasons.put(o.getExternalKey(), reason);
-    if (reasons.size() > 1000) {
-      ExternalSessionKey remove = terminatedSessions.remove();
-      reasons.remove(remove);
+    getTerminatedSessions(o).add(o.getExternalKey(), reason, System.currentTimeMillis());
+  }
+
+  private TerminatedSessions getTerminatedSessions(TestSession session) {
+    TerminatedSessions terminated = terminatedSessions;
+    if (terminated == null) {
+      synchronized (this) {
+        terminated = terminatedSessions;
+        if (terminated == null) {
+          terminated = createTerminatedSessions(session);
+          terminatedSessions = terminated;
+        }
+      }
+    }
+    return terminated;
+  }
+
+  private static TerminatedSessions createTerminatedSessions(TestSession session) {
+    HubRegistryInterface registry = session.getSlot().getProxy().getRegistry();
+    GridHubConfiguration config = registry == null ? null : registry.getConfiguration();
+    if (config == null) {
+      config = new GridHubConfiguration();
     }
+    return new TerminatedSessions(Math.max(1, config.getTerminatedSessionsRetained()),
+                                  config.getTerminatedSessionsMaxAge());
   }
 
   public TestSession findSessionByInternalKey(String internalKey) {
     if (internalKey == null) {
       return null;
     }
-
-    for (TestSession session : activeTestSessions) {
-      if (internalKey.equals(session.getInternalKey())) {
-        return session;
-      }
-    }
-    return null;
+    return byInternalKey.get(internalKey);
   }
 
   public TestSession getExistingSession(ExternalSessionKey externalkey) {
     TestSession sessionByExternalKey = findSessionByExternalKey(externalkey);
     if (sessionByExternalKey == null) {
-      SessionTerminationReason sessionTerminationReason = externalkey != null ? reasons.get(externalkey) : null;
+      TerminatedSessions terminated = terminatedSessions;
+      SessionTerminationReason sessionTerminationReason =
+          externalkey != null && terminated != null
+          ? terminated.get(externalkey, System.currentTimeMillis()) : null;
       String keyId = externalkey != null ? externalkey.getKey() : "(null externalkey)";
       if (sessionTerminationReason != null) {
           String msg = "Session [" + keyId + "] was terminated due to " + sessionTerminationReason;
           log.fine(msg);
           throw new GridException(msg);
       } else {
-          String msg = "Session [" + keyId + "] not available and is not among the last 1000 terminated sessions.\n"
+          String msg = "Session [" + keyId + "] not available and is not among the "
+                  + describeRetention(terminated) + " terminated sessions.\n"
                   + "Active sessions are" + this.unmodifiableSet();
           log.fine(msg);
           throw new GridException(msg);
@@ -113,21 +168,29 @@ class ActiveTestSessions {
     return sessionByExternalKey;
   }
 
+  private static String describeRetention(TerminatedSessions terminated) {
+    if (terminated == null) {
+      return "last";
+    }
+    String res = "last " + terminated.getCapacity();
+    if (terminated.getMaxAgeMs() >= 0) {
+      res += " ( up to " + terminated.getMaxAgeMs() + " ms old )";
+    }
+    return res;
+  }
+
   public TestSession findSessionByExternalKey(ExternalSessionKey externalkey) {
     if (externalkey == null) {
       return null;
     }
+    return byExternalKey.get(externalkey);
+  }
 
-    for (TestSession session : activeTestSessions) {
-      if (externalkey.equals(session.getExternalKey())) {
-        return session;
-      }
-    }
-    return null;
+  public TestSession findSessionByExternalKey(CharSequence chars, int start, int end) {
+    return byExternalKey.get(chars, start, end);
   }
 
   public Set<TestSession> unmodifiableSet() {
     return Collections.unmodifiableSet(activeTestSessions);
   }
-
 }
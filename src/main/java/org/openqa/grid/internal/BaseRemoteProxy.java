@@ -38,6 +38,7 @@ import org.openqa.grid.internal.listeners.TimeoutListener;
 import org.openqa.grid.internal.utils.CapabilityMatcher;
 import org.openqa.grid.internal.utils.DefaultHtmlRenderer;
 import org.openqa.grid.internal.utils.HtmlRenderer;
+import org.openqa.grid.internal.utils.TimingWheel;
 import org.openqa.selenium.remote.DesiredCapabilities;
 import org.openqa.selenium.remote.internal.HttpClientFactory;
 
@@ -51,9 +52,14 @@ import java.net.URL;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -76,6 +82,15 @@ public class BaseRemoteProxy implements RemoteProxy {
   // list of the type of test the remote can run.
   private final List<TestSlot> testSlots;
 
+  // number of slots hosting a session, updated by the slots as they are claimed and released.
+  private final AtomicInteger totalUsed = new AtomicInteger();
+  private final Map<SeleniumProtocol, AtomicInteger> usedByProtocol =
+      new EnumMap<SeleniumProtocol, AtomicInteger>(SeleniumProtocol.class);
+  // slots created from the same capability are grouped, with their own counter and idle slots.
+  private final Map<Map<String, Object>, SlotGroup> slotGroups =
+      new LinkedHashMap<Map<String, Object>, SlotGroup>();
+  private final Map<TestSlot, SlotGroup> groupOfSlot = new IdentityHashMap<TestSlot, SlotGroup>();
+
   // maximum number of tests that can run at a given time on the remote.
   private final int maxConcurrentSession;
   private final HubRegistryInterface registry;
@@ -83,7 +98,10 @@ public class BaseRemoteProxy implements RemoteProxy {
   private final String id;
 
   private volatile boolean stop = false;
-  private CleanUpThread cleanUpThread;
+  // true if the sessions of this proxy are checked for timeouts.
+  private volatile boolean checkTimeouts = false;
+  // checks the sessions of this proxy alone when the registry doesn't provide the hub's wheel.
+  private TimingWheel ownSessionTimeouts = null;
 
   // connection and socket timeout for getStatus node alive check
   // 0 means default timeouts of grid http client will be used.
@@ -156,6 +174,10 @@ public class BaseRemoteProxy implements RemoteProxy {
 
     List<DesiredCapabilities> capabilities = request.getCapabilities();
 
+    for (SeleniumProtocol protocol : SeleniumProtocol.values()) {
+      usedByProtocol.put(protocol, new AtomicInteger());
+    }
+
     List<TestSlot> slots = new ArrayList<TestSlot>();
     for (DesiredCapabilities capability : capabilities) {
       Object maxInstance = capability.getCapability(MAX_INSTANCES);
@@ -174,7 +196,15 @@ public class BaseRemoteProxy implements RemoteProxy {
         for (String k : capability.asMap().keySet()) {
           c.put(k, capability.getCapability(k));
         }
-        slots.add(new TestSlot(this, protocol, path, c));
+        TestSlot slot = new TestSlot(this, protocol, path, c);
+        SlotGroup group = slotGroups.get(c);
+        if (group == null) {
+          group = new SlotGroup(slot);
+          slotGroups.put(c, group);
+        }
+        groupOfSlot.put(slot, group);
+        group.offerIdle(slot);
+        slots.add(slot);
       }
     }
 
@@ -227,16 +257,14 @@ public class BaseRemoteProxy implements RemoteProxy {
     }
   }
 
+  /**
+   * Enables the timeout checks if this proxy is a {@link TimeoutListener}. Rather than a thread
+   * per proxy polling all its slots, each session is checked by the timing wheel of the hub when
+   * it may have timed out, see {@link SessionTimeoutCheck}. If the registry doesn't provide the
+   * {@link HubServices}, the proxy checks its sessions on a wheel of its own.
+   */
   public void setupTimeoutListener() {
-    cleanUpThread = null;
-    if (this instanceof TimeoutListener) {
-      if (cleanUpCycle > 0 && timeOutMs > 0) {
-        log.fine("starting cleanup thread");
-        cleanUpThread = new CleanUpThread(this);
-        new Thread(cleanUpThread, "RemoteProxy CleanUpThread for " + getId())
-            .start(); // Thread safety reviewed (hopefully ;)
-      }
-    }
+    checkTimeouts = this instanceof TimeoutListener && cleanUpCycle > 0 && timeOutMs > 0;
   }
 
   /**
@@ -272,81 +300,116 @@ public class BaseRemoteProxy implements RemoteProxy {
 
   public void teardown() {
     stop = true;
+    synchronized (this) {
+      if (ownSessionTimeouts != null) {
+        ownSessionTimeouts.stop();
+        ownSessionTimeouts = null;
+      }
+    }
   }
 
   /**
    * Internal use only
    */
   public void forceSlotCleanerRun() {
-    cleanUpThread.cleanUpAllSlots();
-  }
-
-  class CleanUpThread implements Runnable {
-
-    private BaseRemoteProxy proxy;
-
-    public CleanUpThread(BaseRemoteProxy proxy) {
-      this.proxy = proxy;
+    if (!(this instanceof TimeoutListener)) {
+      return;
     }
-
-    public void run() {
-
-      log.fine("cleanup thread starting...");
-      while (!proxy.stop) {
+    for (TestSlot slot : testSlots) {
+      TestSession session = slot.getSession();
+      if (session != null) {
         try {
-          Thread.sleep(cleanUpCycle);
-        } catch (InterruptedException e) {
-          log.severe("clean up thread died. " + e.getMessage());
+          checkTimeout(session);
+        } catch (Throwable t) {
+          log.warning("Error executing the timeout when cleaning up slot "
+              + slot + t.getMessage());
         }
-
-        cleanUpAllSlots();
       }
     }
+  }
 
-    void cleanUpAllSlots() {
-      for (TestSlot slot : testSlots) {
+  /**
+   * releases the session if it timed out or has been orphaned.
+   *
+   * @return the delay in ms before the session should be checked again, or -1 if it's released.
+   */
+  private long checkTimeout(TestSession session) {
+    long inactivity = session.getInactivityTime();
+    boolean hasTimedOut = inactivity > timeOutMs;
+    if (hasTimedOut) {
+      if (!session.isForwardingRequest()) {
+        log.logp(
+            Level.WARNING,
+            "SessionCleanup",
+            null,
+            "session "
+                + session
+                + " has TIMED OUT due to client inactivity and will be released.");
         try {
-          cleanUpSlot(slot);
-        } catch (Throwable t) {
-          log.warning("Error executing the timeout when cleaning up slot "
-              + slot + t.getMessage());
+          ((TimeoutListener) this).beforeRelease(session);
+        } catch (IllegalStateException ignore) {
+          log.log(Level.WARNING, ignore.getMessage());
         }
+        registry.terminate(session, SessionTerminationReason.TIMEOUT);
+        return -1;
       }
     }
 
-    private void cleanUpSlot(TestSlot slot) {
-      TestSession session = slot.getSession();
-      if (session != null) {
-        long inactivity = session.getInactivityTime();
-        boolean hasTimedOut = inactivity > timeOutMs;
-        if (hasTimedOut) {
-          if (!session.isForwardingRequest()) {
-            log.logp(
-                Level.WARNING,
-                "SessionCleanup",
-                null,
-                "session "
-                    + session
-                    + " has TIMED OUT due to client inactivity and will be released.");
-            try {
-              ((TimeoutListener) proxy).beforeRelease(session);
-            } catch (IllegalStateException ignore) {
-              log.log(Level.WARNING, ignore.getMessage());
-            }
-            registry.terminate(session, SessionTerminationReason.TIMEOUT);
-          }
-        }
+    if (session.isOrphaned()) {
+      log.logp(Level.WARNING, "SessionCleanup", null, "session " + session
+          + " has been ORPHANED and will be released");
+      try {
+        ((TimeoutListener) this).beforeRelease(session);
+      } catch (IllegalStateException ignore) {
+        log.log(Level.WARNING, ignore.getMessage());
+      }
+      registry.terminate(session, SessionTerminationReason.ORPHAN);
+      return -1;
+    }
 
-        if (session.isOrphaned()) {
-          log.logp(Level.WARNING, "SessionCleanup", null, "session " + session
-              + " has been ORPHANED and will be released");
-          try {
-            ((TimeoutListener) proxy).beforeRelease(session);
-          } catch (IllegalStateException ignore) {
-            log.log(Level.WARNING, ignore.getMessage());
-          }
-          registry.terminate(session, SessionTerminationReason.ORPHAN);
-        }
+    // the session can't time out before timeOutMs of inactivity. It may still be forwarding a
+    // command that started before.
+    long delay = hasTimedOut ? cleanUpCycle : timeOutMs - inactivity + 1;
+    if (session.getSlot().getProtocol().isSelenium()) {
+      // can become orphaned at any time.
+      delay = Math.min(delay, cleanUpCycle);
+    }
+    return delay;
+  }
+
+  /**
+   * Checks a session of this proxy for timeouts, and schedules the next check on the timing
+   * wheel of the hub as long as the session is running.
+   */
+  private class SessionTimeoutCheck implements Runnable {
+
+    private final TestSession session;
+    private final TimingWheel wheel;
+
+    SessionTimeoutCheck(TestSession session, TimingWheel wheel) {
+      this.session = session;
+      this.wheel = wheel;
+    }
+
+    void schedule(long delay) {
+      wheel.schedule(this, delay);
+    }
+
+    public void run() {
+      if (stop || session.getSlot().getSession() != session) {
+        // the proxy is gone or the session is already released.
+        return;
+      }
+      long delay;
+      try {
+        delay = checkTimeout(session);
+      } catch (Throwable t) {
+        log.warning("Error executing the timeout when cleaning up slot "
+            + session.getSlot() + t.getMessage());
+        delay = cleanUpCycle;
+      }
+      if (delay >= 0) {
+        schedule(delay);
       }
     }
   }
@@ -367,7 +430,19 @@ public class BaseRemoteProxy implements RemoteProxy {
     return remoteHost;
   }
 
+  /**
+   * @return false if the proxy turns down all the new session requests for now, whatever they
+   *         ask for. Unlike redefining {@link #getNewSession(Map)}, that keeps the hub free to
+   *         assume the requests with the same capabilities are all treated the same.
+   */
+  protected boolean acceptsNewSessions() {
+    return true;
+  }
+
   public TestSession getNewSession(Map<String, Object> requestedCapability) {
+    if (!acceptsNewSessions()) {
+      return null;
+    }
     log.info("Trying to create a new session on node " + this);
 
     if (!hasCapability(requestedCapability)) {
@@ -379,32 +454,160 @@ public class BaseRemoteProxy implements RemoteProxy {
       log.info("Node " + this + " has no free slots");
       return null;
     }
-    // any slot left for the given app ?
-    for (TestSlot testslot : testSlots) {
-      TestSession session = testslot.getNewSession(requestedCapability);
-
-      if (session != null) {
-        return session;
+    // any slot left for the given app ? Only the idle slots of the matching groups are tried.
+    for (SlotGroup group : slotGroups.values()) {
+      if (!group.representative.matches(requestedCapability)) {
+        continue;
+      }
+      List<TestSlot> unmatched = null;
+      try {
+        TestSlot testslot;
+        while ((testslot = group.pollIdle()) != null) {
+          TestSession session;
+          try {
+            session = testslot.getNewSession(requestedCapability);
+          } catch (RuntimeException e) {
+            reofferIfFree(group, testslot);
+            throw e;
+          }
+          if (session != null) {
+            return session;
+          }
+          // a slot claimed without going through its group comes back on release. A slot that is
+          // still free didn't match, it goes back once the others have been tried.
+          if (testslot.getSession() == null) {
+            if (unmatched == null) {
+              unmatched = new ArrayList<TestSlot>();
+            }
+            unmatched.add(testslot);
+          }
+        }
+      } finally {
+        if (unmatched != null) {
+          for (TestSlot slot : unmatched) {
+            reofferIfFree(group, slot);
+          }
+        }
       }
     }
     return null;
   }
 
+  /**
+   * puts back on the idle stack a slot taken from it that didn't get a session.
+   */
+  private static void reofferIfFree(SlotGroup group, TestSlot slot) {
+    if (slot.getSession() == null) {
+      group.offerIdle(slot);
+    }
+  }
+
   public int getTotalUsed() {
-    int totalUsed = 0;
+    return totalUsed.get();
+  }
 
-    for (TestSlot slot : testSlots) {
-      if (slot.getSession() != null) {
-        totalUsed++;
+  /**
+   * @param protocol the protocol of the slots to count.
+   * @return the number of slots of that protocol currently hosting a session.
+   */
+  public int getTotalUsed(SeleniumProtocol protocol) {
+    return usedByProtocol.get(protocol).get();
+  }
+
+  /**
+   * @param capabilities the capabilities of a slot of this proxy.
+   * @return the number of slots registered with those capabilities currently hosting a session,
+   *         0 if the proxy has no such slot.
+   */
+  public int getTotalUsed(Map<String, Object> capabilities) {
+    SlotGroup group = slotGroups.get(capabilities);
+    return group == null ? 0 : group.used.get();
+  }
+
+  /**
+   * Called by a slot of this proxy when it starts hosting a session.
+   */
+  void slotClaimed(TestSlot slot) {
+    updateUsed(slot, 1);
+    TestSession session = slot.getSession();
+    if (checkTimeouts && session != null) {
+      TimingWheel wheel = getSessionTimeouts();
+      if (wheel != null) {
+        new SessionTimeoutCheck(session, wheel).schedule(Math.min(timeOutMs, cleanUpCycle));
+      }
+    }
+  }
+
+  /**
+   * @return the wheel checking the sessions of this proxy for timeouts, null once torn down.
+   */
+  private TimingWheel getSessionTimeouts() {
+    HubServices services = HubServices.of(registry);
+    if (services != null) {
+      return services.getSessionTimeouts();
+    }
+    synchronized (this) {
+      if (ownSessionTimeouts == null && !stop) {
+        ownSessionTimeouts = new TimingWheel("Session timeouts of " + remoteHost,
+            TimingWheel.DEFAULT_TICK_MS, 64, 1);
+      }
+      return ownSessionTimeouts;
+    }
+  }
+
+  /**
+   * Called by a slot of this proxy when its session is released.
+   */
+  void slotReleased(TestSlot slot) {
+    updateUsed(slot, -1);
+    SlotGroup group = groupOfSlot.get(slot);
+    if (group != null) {
+      group.offerIdle(slot);
+    }
+  }
+
+  private void updateUsed(TestSlot slot, int delta) {
+    totalUsed.addAndGet(delta);
+    usedByProtocol.get(slot.getProtocol()).addAndGet(delta);
+    SlotGroup group = groupOfSlot.get(slot);
+    if (group != null) {
+      group.used.addAndGet(delta);
+    }
+  }
+
+  /**
+   * The slots of this proxy created from the same capability. They all match the same requests,
+   * so matching is done once for the group, and the idle slots are kept in a lock free stack
+   * where a new session can be claimed without looking at the busy ones.
+   */
+  private static class SlotGroup {
+    private final TestSlot representative;
+    private final AtomicInteger used = new AtomicInteger();
+    private final ConcurrentLinkedDeque<TestSlot> idle = new ConcurrentLinkedDeque<TestSlot>();
+
+    SlotGroup(TestSlot representative) {
+      this.representative = representative;
+    }
+
+    void offerIdle(TestSlot slot) {
+      // a slot is never in the stack twice.
+      if (slot.idleListed.compareAndSet(false, true)) {
+        idle.offerFirst(slot);
       }
     }
 
-    return totalUsed;
+    TestSlot pollIdle() {
+      TestSlot slot = idle.pollFirst();
+      if (slot != null) {
+        slot.idleListed.set(false);
+      }
+      return slot;
+    }
   }
 
   public boolean hasCapability(Map<String, Object> requestedCapability) {
-    for (TestSlot slot : testSlots) {
-      if (slot.matches(requestedCapability)) {
+    for (SlotGroup group : slotGroups.values()) {
+      if (group.representative.matches(requestedCapability)) {
         return true;
       }
     }
@@ -0,0 +1,236 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.openqa.grid.internal.utils.CapabilityKey;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+import org.openqa.grid.internal.utils.SlotCapabilities;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The distinct capabilities offered by the grid, with the number of proxies and slots offering
+ * each of them, kept up to date as the proxies register and unregister.
+ * <p/>
+ * The capabilities are grouped by {@link CapabilityKey}, so a grid of identical nodes offers a
+ * handful of them whatever its size. Finding out if the grid can ever host a request only looks at
+ * those, instead of asking every slot of every proxy, and the answer is remembered by request key
+ * until the next registration.
+ * <p/>
+ * That only holds for the {@link org.openqa.grid.internal.utils.DefaultCapabilityMatcher} and the
+ * proxies that don't redefine {@link RemoteProxy#hasCapability(Map)} or
+ * {@link RemoteProxy#getNewSession(Map)}, see {@link #isIndexable(RemoteProxy)}. When one of the
+ * proxies doesn't qualify, {@link #canAnswer()} is false and the proxies have to be asked.
+ */
+@ThreadSafe
+public class CapabilityCatalog {
+
+  // the requests are clients input, don't let the answers grow forever.
+  private static final int MAX_ANSWERS = 1024;
+
+  // guarded by this.
+  private final Map<CapabilityKey, Offer> offers = new HashMap<CapabilityKey, Offer>();
+  private final Map<RemoteProxy, Map<CapabilityKey, Integer>> slotsByProxy =
+      new IdentityHashMap<RemoteProxy, Map<CapabilityKey, Integer>>();
+  private int proxiesNotIndexed = 0;
+
+  // replaced on each change.
+  private volatile List<Offer> snapshot = Collections.emptyList();
+  private volatile ConcurrentMap<CapabilityKey, Boolean> answers =
+      new ConcurrentHashMap<CapabilityKey, Boolean>();
+  private volatile boolean canAnswer = true;
+
+  /**
+   * adds the capabilities of the slots of that proxy.
+   */
+  public synchronized void add(RemoteProxy proxy) {
+    if (slotsByProxy.containsKey(proxy)) {
+      return;
+    }
+    if (!isIndexable(proxy)) {
+      proxiesNotIndexed++;
+      slotsByProxy.put(proxy, null);
+      changed();
+      return;
+    }
+    Map<CapabilityKey, Integer> slots = new HashMap<CapabilityKey, Integer>();
+    for (TestSlot slot : proxy.getTestSlots()) {
+      CapabilityKey key = CapabilityKey.of(slot.getCapabilities());
+      Integer count = slots.get(key);
+      slots.put(key, count == null ? 1 : count + 1);
+      if (count == null && !offers.containsKey(key)) {
+        offers.put(key, new Offer(key, SlotCapabilities.of(slot.getCapabilities())));
+      }
+    }
+    for (Map.Entry<CapabilityKey, Integer> entry : slots.entrySet()) {
+      Offer offer = offers.get(entry.getKey());
+      offer.proxies++;
+      offer.slots += entry.getValue();
+    }
+    slotsByProxy.put(proxy, slots);
+    changed();
+  }
+
+  /**
+   * removes the capabilities of the slots of that proxy.
+   */
+  public synchronized void remove(RemoteProxy proxy) {
+    if (!slotsByProxy.containsKey(proxy)) {
+      return;
+    }
+    Map<CapabilityKey, Integer> slots = slotsByProxy.remove(proxy);
+    if (slots == null) {
+      proxiesNotIndexed--;
+      changed();
+      return;
+    }
+    for (Map.Entry<CapabilityKey, Integer> entry : slots.entrySet()) {
+      Offer offer = offers.get(entry.getKey());
+      offer.proxies--;
+      offer.slots -= entry.getValue();
+      if (offer.proxies == 0) {
+        offers.remove(entry.getKey());
+      }
+    }
+    changed();
+  }
+
+  private void changed() {
+    List<Offer> copy = new ArrayList<Offer>(offers.size());
+    for (Offer offer : offers.values()) {
+      copy.add(new Offer(offer));
+    }
+    snapshot = copy;
+    canAnswer = proxiesNotIndexed == 0;
+    answers = new ConcurrentHashMap<CapabilityKey, Boolean>();
+  }
+
+  /**
+   * @return true if the proxy treats all the requests with the same {@link CapabilityKey} the
+   *         same way: it matches them with the default matcher, and leaves the capability check
+   *         and the session allocation to {@link BaseRemoteProxy}.
+   */
+  static boolean isIndexable(RemoteProxy proxy) {
+    if (!CapabilityKey.isKeyedBy(proxy.getCapabilityHelper())) {
+      return false;
+    }
+    return declaredByBaseRemoteProxy(proxy, "hasCapability")
+           && declaredByBaseRemoteProxy(proxy, "getNewSession");
+  }
+
+  private static boolean declaredByBaseRemoteProxy(RemoteProxy proxy, String method) {
+    try {
+      return proxy.getClass().getMethod(method, Map.class).getDeclaringClass()
+             == BaseRemoteProxy.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if {@link #isOffered(Map)} gives the same answer as asking the proxies.
+   */
+  public boolean canAnswer() {
+    return canAnswer;
+  }
+
+  /**
+   * @param requestedCapability the capabilities of a new session request.
+   * @return true if at least one slot of the grid matches them, busy or not.
+   */
+  public boolean isOffered(Map<String, Object> requestedCapability) {
+    // read first, the answers are replaced after the offers.
+    ConcurrentMap<CapabilityKey, Boolean> current = answers;
+    List<Offer> offered = snapshot;
+    CapabilityKey key = CapabilityKey.of(requestedCapability);
+    Boolean answer = current.get(key);
+    if (answer != null) {
+      return answer;
+    }
+    answer = Boolean.FALSE;
+    RequestedCapabilities requested = RequestedCapabilities.of(requestedCapability);
+    for (Offer offer : offered) {
+      if (requested.matches(offer.capabilities)) {
+        answer = Boolean.TRUE;
+        break;
+      }
+    }
+    if (current.size() < MAX_ANSWERS) {
+      current.put(key, answer);
+    }
+    return answer;
+  }
+
+  /**
+   * @return the number of distinct capabilities offered.
+   */
+  public int size() {
+    return snapshot.size();
+  }
+
+  /**
+   * @return the capabilities offered, with the number of proxies and slots offering them.
+   */
+  public JsonObject toJson() {
+    List<Offer> offered = snapshot;
+    JsonArray res = new JsonArray();
+    BeanToJsonConverter converter = new BeanToJsonConverter();
+    for (Offer offer : offered) {
+      JsonObject o = new JsonObject();
+      o.add("capabilities", converter.convertObject(offer.key.asMap()));
+      o.addProperty("proxies", offer.proxies);
+      o.addProperty("slots", offer.slots);
+      res.add(o);
+    }
+    JsonObject json = new JsonObject();
+    json.addProperty("complete", canAnswer);
+    json.add("offered", res);
+    return json;
+  }
+
+  private static class Offer {
+    private final CapabilityKey key;
+    private final SlotCapabilities capabilities;
+    private int proxies;
+    private int slots;
+
+    Offer(CapabilityKey key, SlotCapabilities capabilities) {
+      this.key = key;
+      this.capabilities = capabilities;
+    }
+
+    Offer(Offer offer) {
+      this(offer.key, offer.capabilities);
+      proxies = offer.proxies;
+      slots = offer.slots;
+    }
+  }
+}
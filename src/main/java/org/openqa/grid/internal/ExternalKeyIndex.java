@@ -0,0 +1,149 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The active sessions by external key. It can be queried with the characters of a key where they
+ * appear in a request, without creating the key: the entries are found by the hash code of the
+ * key, then compared with {@link ExternalSessionKey#matches(CharSequence, int, int)}.
+ * <p/>
+ * A chained hash table. The chains are immutable and replaced on each change, so the lookups don't
+ * lock and always see a consistent chain, the changes are serialized.
+ */
+@ThreadSafe
+class ExternalKeyIndex {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  // guarded by this for the writes, replaced when the table grows.
+  private volatile AtomicReferenceArray<Node> table =
+      new AtomicReferenceArray<Node>(INITIAL_CAPACITY);
+  private int size = 0;
+
+  /**
+   * @return the session with that key, null if there is none.
+   */
+  TestSession get(ExternalSessionKey key) {
+    String chars = key.getKey();
+    return get(chars, 0, chars.length(), key.hashCode());
+  }
+
+  /**
+   * @return the session whose key is made of the characters between start and end, null if there
+   *         is none.
+   */
+  TestSession get(CharSequence chars, int start, int end) {
+    return get(chars, start, end, ExternalSessionKey.hashCode(chars, start, end));
+  }
+
+  private TestSession get(CharSequence chars, int start, int end, int hash) {
+    AtomicReferenceArray<Node> current = table;
+    for (Node node = current.get(indexOf(hash, current)); node != null; node = node.next) {
+      if (node.hash == hash && node.key.matches(chars, start, end)) {
+        return node.session;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * indexes the session under that key, replacing the session previously indexed under it.
+   */
+  synchronized void put(ExternalSessionKey key, TestSession session) {
+    int hash = key.hashCode();
+    int i = indexOf(hash, table);
+    Node chain = table.get(i);
+    Node found = find(chain, key);
+    if (found != null) {
+      chain = without(chain, found);
+      size--;
+    }
+    table.set(i, new Node(key, hash, session, chain));
+    size++;
+    if (size > table.length() * 3 / 4) {
+      grow();
+    }
+  }
+
+  /**
+   * removes the key, if it is still indexing that session.
+   */
+  synchronized void remove(ExternalSessionKey key, TestSession session) {
+    int i = indexOf(key.hashCode(), table);
+    Node chain = table.get(i);
+    Node found = find(chain, key);
+    if (found != null && found.session == session) {
+      table.set(i, without(chain, found));
+      size--;
+    }
+  }
+
+  private void grow() {
+    AtomicReferenceArray<Node> old = table;
+    AtomicReferenceArray<Node> bigger = new AtomicReferenceArray<Node>(old.length() * 2);
+    for (int i = 0; i < old.length(); i++) {
+      for (Node node = old.get(i); node != null; node = node.next) {
+        int j = indexOf(node.hash, bigger);
+        bigger.set(j, new Node(node.key, node.hash, node.session, bigger.get(j)));
+      }
+    }
+    table = bigger;
+  }
+
+  private static Node find(Node chain, ExternalSessionKey key) {
+    for (Node node = chain; node != null; node = node.next) {
+      if (node.key.equals(key)) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return a copy of the chain without that node, sharing the nodes after it.
+   */
+  private static Node without(Node chain, Node removed) {
+    if (chain == removed) {
+      return removed.next;
+    }
+    return new Node(chain.key, chain.hash, chain.session, without(chain.next, removed));
+  }
+
+  private static int indexOf(int hash, AtomicReferenceArray<Node> table) {
+    // spreads the high bits, like HashMap.
+    return (hash ^ (hash >>> 16)) & (table.length() - 1);
+  }
+
+  private static class Node {
+    private final ExternalSessionKey key;
+    private final int hash;
+    private final TestSession session;
+    private final Node next;
+
+    Node(ExternalSessionKey key, int hash, TestSession session, Node next) {
+      this.key = key;
+      this.hash = hash;
+      this.session = session;
+      this.next = next;
+    }
+  }
+}
@@ -17,14 +17,22 @@ limitations under the License.
 
 package org.openqa.grid.internal;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import org.openqa.grid.internal.exception.NewSessionException;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+
 public class ExternalSessionKey {
 
+  private static final String SESSION_SEGMENT = "/session/";
+
   private final String key;
 
   public ExternalSessionKey(String key) {
@@ -74,42 +82,136 @@ public class ExternalSessionKey {
    * @return the ExternalSessionKey provided by the remote., or null if the url didn't contain a session id
    */
   public static ExternalSessionKey fromWebDriverRequest(String path){
-      int sessionIndex = path.indexOf("/session/");
-      if (sessionIndex != -1) {
-        sessionIndex += "/session/".length();
-        int nextSlash = path.indexOf("/", sessionIndex);
-        String session;
-        if (nextSlash != -1) {
-          session = path.substring(sessionIndex, nextSlash);
-        } else {
-          session = path.substring(sessionIndex, path.length());
-        }
-        if ("".equals(session)) {
-          return null;
-        }
-        return new ExternalSessionKey(session);
-      }
+    int start = webDriverSessionIdStart(path);
+    if (start == -1) {
       return null;
+    }
+    return new ExternalSessionKey(path.substring(start, webDriverSessionIdEnd(path, start)));
+  }
+
+  /**
+   * finds the session xxx in http://host:port/a/b/c/session/xxx/... without copying it.
+   *
+   * @param path the path of the request
+   * @return the index of the first character of the session id, or -1 if the path didn't contain
+   *         a session id
+   * @see #webDriverSessionIdEnd(CharSequence, int)
+   */
+  public static int webDriverSessionIdStart(CharSequence path) {
+    int last = path.length() - SESSION_SEGMENT.length();
+    for (int i = 0; i < last; i++) {
+      if (regionMatches(path, i, SESSION_SEGMENT)) {
+        int start = i + SESSION_SEGMENT.length();
+        return path.charAt(start) == '/' ? -1 : start;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param path  the path of the request
+   * @param start the index returned by {@link #webDriverSessionIdStart(CharSequence)}
+   * @return the index after the last character of the session id
+   */
+  public static int webDriverSessionIdEnd(CharSequence path, int start) {
+    for (int i = start; i < path.length(); i++) {
+      if (path.charAt(i) == '/') {
+        return i;
+      }
+    }
+    return path.length();
+  }
+
+  private static boolean regionMatches(CharSequence chars, int offset, String other) {
+    for (int i = 0; i < other.length(); i++) {
+      if (chars.charAt(offset + i) != other.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the characters between start and end are this key.
+   */
+  boolean matches(CharSequence chars, int start, int end) {
+    return end - start == key.length() && regionMatches(chars, start, key);
+  }
+
+  /**
+   * @return the hash code of the key made of the characters between start and end, without
+   *         creating it.
+   */
+  static int hashCode(CharSequence chars, int start, int end) {
+    // String.hashCode
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + chars.charAt(i);
+    }
+    return h;
   }
 
   /**
    * Extract the external key from the server response for a selenium2 new session request.
-   * The response body is expected to be of the form {"status":0,"sessionId":"XXXX",...}.
+   * The response body is expected to be of the form {"status":0,"sessionId":"XXXX",...}, or
+   * {"value":{"sessionId":"XXXX",...}} for a W3C remote.
    * @param responseBody the response body to parse
    * @return the extracted ExternalKey, or null if one was not found.
    */
   public static ExternalSessionKey fromJsonResponseBody(String responseBody) {
+    return fromJsonResponseBody(new StringReader(responseBody));
+  }
+
+  /**
+   * Same as {@link #fromJsonResponseBody(String)}, reading the UTF-8 body as it comes. The parsing
+   * stops at the session id, the rest of the response, like the capabilities, is not looked at.
+   * @param responseBody the response body to parse
+   * @return the extracted ExternalKey, or null if one was not found.
+   */
+  public static ExternalSessionKey fromJsonResponseBody(byte[] responseBody) {
+    return fromJsonResponseBody(
+        new InputStreamReader(new ByteArrayInputStream(responseBody), Charsets.UTF_8));
+  }
+
+  private static ExternalSessionKey fromJsonResponseBody(Reader responseBody) {
+    JsonReader reader = new JsonReader(responseBody);
+    reader.setLenient(true);
     try {
-      JsonObject json = new JsonParser().parse(responseBody).getAsJsonObject();
-      if (!json.has("sessionId") || json.get("sessionId").isJsonNull()) {
-        return null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if ("sessionId".equals(name) && reader.peek() != JsonToken.NULL) {
+          return new ExternalSessionKey(reader.nextString());
+        } else if ("value".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+          ExternalSessionKey key = fromJsonResponseValue(reader);
+          if (key != null) {
+            return key;
+          }
+        } else {
+          reader.skipValue();
+        }
       }
-      return new ExternalSessionKey(json.get("sessionId").getAsString());
-    } catch (JsonSyntaxException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    } catch (IllegalStateException e) {
+      // not the expected structure.
       return null;
     }
   }
-  
+
+  private static ExternalSessionKey fromJsonResponseValue(JsonReader reader) throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if ("sessionId".equals(reader.nextName()) && reader.peek() != JsonToken.NULL) {
+        return new ExternalSessionKey(reader.nextString());
+      }
+      reader.skipValue();
+    }
+    reader.endObject();
+    return null;
+  }
+
   /**
    * extract the external key from the server response for a selenium1 new session request.
    * @param responseBody the response from the server
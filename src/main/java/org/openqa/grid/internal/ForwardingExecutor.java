@@ -0,0 +1,109 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads forwarding the commands to the nodes when the servlet threads are released during
+ * the forward ( hub started with a positive asyncForwardingThreads ). The pool is created on
+ * first use, and replaced if the configured number of threads changes.
+ * <p/>
+ * A forward holds its thread for the whole node call, so this moves the limit on the commands in
+ * flight from the servlet threads to these threads, it doesn't remove it. At most as many commands
+ * as there are threads wait for one, the others are rejected right away rather than queued behind
+ * slow node calls.
+ */
+@ThreadSafe
+public class ForwardingExecutor {
+
+  private ThreadPoolExecutor executor;
+  private boolean shutdown = false;
+
+  private final ThreadFactory threadFactory = new ForwardingThreadFactory();
+
+  /**
+   * @param command the forward to run.
+   * @param threads the number of forwarding threads configured.
+   * @throws RejectedExecutionException if the executor has been shut down, or if all the threads
+   *                                    are busy and as many commands already wait for one.
+   */
+  public synchronized void execute(Runnable command, int threads) {
+    if (shutdown) {
+      throw new RejectedExecutionException("The forwarding executor has been shut down.");
+    }
+    int size = Math.max(1, threads);
+    if (executor == null || executor.getCorePoolSize() != size) {
+      if (executor != null) {
+        // the commands already handed over still run.
+        executor.shutdown();
+      }
+      executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                                        new LinkedBlockingQueue<Runnable>(size), threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+    }
+    try {
+      executor.execute(command);
+    } catch (RejectedExecutionException e) {
+      throw new RejectedExecutionException(
+          "All the " + size + " forwarding threads are busy and " + executor.getQueue().size()
+          + " commands are waiting, see asyncForwardingThreads.");
+    }
+  }
+
+  /**
+   * @return the number of commands being forwarded.
+   */
+  public synchronized int getActiveCount() {
+    return executor == null ? 0 : executor.getActiveCount();
+  }
+
+  /**
+   * @return the number of commands waiting for a forwarding thread.
+   */
+  public synchronized int getQueueSize() {
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  /**
+   * stops the forwarding threads. The commands being forwarded are interrupted.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private static class ForwardingThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Grid forwarding thread " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs the probes checking the nodes are alive, for all the nodes of the hub, on a fixed number
+ * of threads. That number also caps how many nodes are probed at the same time.
+ * <p/>
+ * The delays are jittered, so that the nodes registered at the same time, typically after a hub
+ * restart, are not all probed at the same moment.
+ */
+@ThreadSafe
+public class HealthCheckScheduler {
+
+  private static final Logger log = Logger.getLogger(HealthCheckScheduler.class.getName());
+
+  public static final int DEFAULT_THREADS = 16;
+  // the delays vary by up to 10% either way.
+  private static final double JITTER = 0.1;
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  public HealthCheckScheduler() {
+    this(DEFAULT_THREADS);
+  }
+
+  public HealthCheckScheduler(int threads) {
+    executor = new ScheduledThreadPoolExecutor(threads, new HealthCheckThreadFactory());
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * @param probe   the probe to run.
+   * @param delayMs the delay before running it, in ms, jittered.
+   * @return the scheduled probe, to cancel it. null if the scheduler has been shut down.
+   */
+  public Future<?> schedule(Runnable probe, long delayMs) {
+    return scheduleExactly(probe, jitter(delayMs));
+  }
+
+  /**
+   * schedules the first probe of a node at a random time within the given delay.
+   *
+   * @param probe   the probe to run.
+   * @param delayMs the maximum delay before running it, in ms.
+   * @return the scheduled probe, to cancel it. null if the scheduler has been shut down.
+   */
+  public Future<?> scheduleFirst(Runnable probe, long delayMs) {
+    long delay = delayMs > 0 ? ThreadLocalRandom.current().nextLong(delayMs) + 1 : 0;
+    return scheduleExactly(probe, delay);
+  }
+
+  private Future<?> scheduleExactly(Runnable probe, long delayMs) {
+    try {
+      return executor.schedule(probe, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      log.fine("Health checks are stopped, not scheduling " + probe);
+      return null;
+    }
+  }
+
+  private static long jitter(long delayMs) {
+    long spread = (long) (delayMs * JITTER);
+    if (spread <= 0) {
+      return delayMs;
+    }
+    return delayMs - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+  }
+
+  /**
+   * @return the number of probes running.
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * @return the number of probes scheduled.
+   */
+  public int getScheduledCount() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * stops the probes.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static class HealthCheckThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Grid health check thread " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import com.google.gson.JsonObject;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.openqa.grid.internal.utils.Histogram;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time goes in the hub. All the durations are recorded in microseconds.
+ * <ul>
+ * <li>queue wait: from the reception of a new session request to its assignment to a slot.</li>
+ * <li>node round trip: from sending a command to a node to receiving the headers of its
+ * answer.</li>
+ * <li>response write: reading the answer of the node and writing it to the client.</li>
+ * <li>session lifetime: from the creation of a session on the node to its termination.</li>
+ * </ul>
+ * The terminated sessions are also counted by {@link SessionTerminationReason}.
+ */
+@ThreadSafe
+public class HubMetrics {
+
+  private final Histogram queueWait = new Histogram();
+  private final Histogram nodeRoundTrip = new Histogram();
+  private final Histogram responseWrite = new Histogram();
+  private final Histogram sessionLifetime = new Histogram();
+  private final AtomicLongArray terminations =
+      new AtomicLongArray(SessionTerminationReason.values().length);
+
+  public Histogram getQueueWait() {
+    return queueWait;
+  }
+
+  public Histogram getNodeRoundTrip() {
+    return nodeRoundTrip;
+  }
+
+  public Histogram getResponseWrite() {
+    return responseWrite;
+  }
+
+  public Histogram getSessionLifetime() {
+    return sessionLifetime;
+  }
+
+  /**
+   * counts a terminated session.
+   */
+  public void sessionTerminated(SessionTerminationReason reason) {
+    terminations.incrementAndGet(reason.ordinal());
+  }
+
+  /**
+   * @return the number of sessions terminated for that reason.
+   */
+  public long getTerminations(SessionTerminationReason reason) {
+    return terminations.get(reason.ordinal());
+  }
+
+  /**
+   * @return the metrics as json, the durations being converted to milliseconds.
+   */
+  public JsonObject toJson() {
+    JsonObject res = new JsonObject();
+    res.add("queueWait", toJson(queueWait));
+    res.add("nodeRoundTrip", toJson(nodeRoundTrip));
+    res.add("responseWrite", toJson(responseWrite));
+    res.add("sessionLifetime", toJson(sessionLifetime));
+    JsonObject reasons = new JsonObject();
+    for (SessionTerminationReason reason : SessionTerminationReason.values()) {
+      reasons.addProperty(reason.name(), getTerminations(reason));
+    }
+    res.add("terminations", reasons);
+    return res;
+  }
+
+  private static JsonObject toJson(Histogram histogram) {
+    Histogram.Snapshot snapshot = histogram.snapshot();
+    JsonObject res = new JsonObject();
+    res.addProperty("count", snapshot.getCount());
+    res.addProperty("mean", snapshot.getMean() / 1000);
+    res.addProperty("p50", snapshot.getValueAtPercentile(50) / 1000d);
+    res.addProperty("p90", snapshot.getValueAtPercentile(90) / 1000d);
+    res.addProperty("p99", snapshot.getValueAtPercentile(99) / 1000d);
+    res.addProperty("p999", snapshot.getValueAtPercentile(99.9) / 1000d);
+    res.addProperty("max", snapshot.getMax() / 1000d);
+    return res;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.openqa.grid.internal.utils.TimingWheel;
+
+/**
+ * The resources shared by all the proxies and requests of a hub: the connections and threads
+ * talking to the nodes, the timers, the caches and the metrics. The registry creates them, hands
+ * them out as a {@link HubServicesProvider}, and shuts them down when it stops.
+ * <p/>
+ * A registry may not provide them. Everything reaches them through
+ * {@link #of(HubRegistryInterface)} and does without them when it returns null.
+ */
+@ThreadSafe
+public class HubServices {
+
+  private final NodeClientPool clientPool = new NodeClientPool();
+  private final ForwardingExecutor forwardingExecutor = new ForwardingExecutor();
+  private VirtualThreadExecutor virtualThreadExecutor;
+  private final TimingWheel sessionTimeouts = new TimingWheel("Grid session timeouts");
+  private final HealthCheckScheduler healthChecks = new HealthCheckScheduler();
+  private final HubMetrics metrics = new HubMetrics();
+  private final MatchCache matchCache = new MatchCache();
+
+  /**
+   * @return the services of that registry, null if the registry is null or doesn't provide them.
+   */
+  public static HubServices of(HubRegistryInterface registry) {
+    if (registry instanceof HubServicesProvider) {
+      return ((HubServicesProvider) registry).getServices();
+    }
+    return null;
+  }
+
+  /**
+   * @return the services of the registry of that proxy, null if there are none.
+   */
+  public static HubServices of(RemoteProxy proxy) {
+    return of(proxy.getRegistry());
+  }
+
+  /**
+   * forgets what the hub computed with the capability matcher of a proxy joining the grid.
+   */
+  public void proxyAdded(RemoteProxy proxy) {
+    matchCache.invalidate(proxy.getCapabilityHelper());
+  }
+
+  /**
+   * releases what the hub holds for a proxy that left the grid.
+   */
+  public void proxyRemoved(RemoteProxy proxy) {
+    clientPool.close(proxy);
+    matchCache.invalidate(proxy.getCapabilityHelper());
+  }
+
+  /**
+   * stops the timers and the threads, and closes the connections to the nodes.
+   */
+  public void shutdown() {
+    sessionTimeouts.stop();
+    healthChecks.shutdown();
+    forwardingExecutor.shutdown();
+    clientPool.closeAll();
+  }
+
+  /**
+   * @return the pooled http clients used to forward the commands to the proxies.
+   */
+  public NodeClientPool getClientPool() {
+    return clientPool;
+  }
+
+  /**
+   * @return the threads forwarding the commands when the hub releases the servlet threads during
+   *         the forward.
+   */
+  public ForwardingExecutor getForwardingExecutor() {
+    return forwardingExecutor;
+  }
+
+  /**
+   * @return the threads handling the requests when the hub runs them on virtual threads.
+   */
+  public synchronized VirtualThreadExecutor getVirtualThreadExecutor() {
+    if (virtualThreadExecutor == null) {
+      virtualThreadExecutor = new VirtualThreadExecutor();
+    }
+    return virtualThreadExecutor;
+  }
+
+  /**
+   * @return the wheel on which the sessions of all the proxies are checked for timeouts.
+   */
+  public TimingWheel getSessionTimeouts() {
+    return sessionTimeouts;
+  }
+
+  /**
+   * @return the threads probing the proxies.
+   */
+  public HealthCheckScheduler getHealthChecks() {
+    return healthChecks;
+  }
+
+  /**
+   * @return the latency histograms and counters of the hub.
+   */
+  public HubMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the cache of the slot / request matching results, exposing hit and miss counters.
+   */
+  public MatchCache getMatchCache() {
+    return matchCache;
+  }
+}
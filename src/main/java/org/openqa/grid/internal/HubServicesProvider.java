@@ -0,0 +1,36 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+/**
+ * To be implemented by the registry. Gives the proxies and the requests the {@link HubServices}
+ * of the hub: the pooled clients, the forwarding threads, the session timeouts, the health checks,
+ * the metrics and the match cache. The registry creates them once, and calls
+ * {@link HubServices#shutdown()} when it is stopped.
+ * <p/>
+ * With a registry not implementing it, the commands are forwarded with a client per request on
+ * the servlet thread, and each proxy checks its own sessions and its own health.
+ */
+public interface HubServicesProvider {
+
+  /**
+   * @return the resources shared by all the proxies and requests of the hub.
+   */
+  public HubServices getServices();
+
+}
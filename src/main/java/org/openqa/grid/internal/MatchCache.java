@@ -0,0 +1,217 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.openqa.grid.internal.utils.CapabilityFingerprint;
+import org.openqa.grid.internal.utils.CapabilityMatcher;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers whether the capabilities of a slot match the capabilities of a request, so that the
+ * same request waiting in the queue many times over doesn't go through a custom capability matcher
+ * again for every slot of every proxy. The slots matched with the default matcher don't use it,
+ * their compiled match is cheaper than a lookup, so on a grid with only the default matcher the
+ * cache stays empty and its counters stay at 0.
+ * <p/>
+ * Results are kept per matcher, then by the fingerprint of the slot capabilities and the
+ * fingerprint of the requested capabilities, so proxies with different matchers share the cache.
+ * The results of a matcher are dropped when a proxy using it registers or unregisters, which also
+ * forgets the matchers of the proxies that left. When the cache is full, the results of one slot
+ * are dropped to make room.
+ */
+@ThreadSafe
+public class MatchCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final int maxEntries;
+  // by matcher, by slot fingerprint, by request fingerprint.
+  private final ConcurrentMap<CapabilityMatcher, ConcurrentMap<CapabilityFingerprint, Results>>
+      results =
+      new ConcurrentHashMap<CapabilityMatcher, ConcurrentMap<CapabilityFingerprint, Results>>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public MatchCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  public MatchCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  boolean matches(TestSlot slot, RequestedCapabilities requested) {
+    CapabilityMatcher matcher = slot.getProxy().getCapabilityHelper();
+    ConcurrentMap<CapabilityFingerprint, Results> forMatcher = results.get(matcher);
+    if (forMatcher == null) {
+      forMatcher = new ConcurrentHashMap<CapabilityFingerprint, Results>();
+      ConcurrentMap<CapabilityFingerprint, Results> existing =
+          results.putIfAbsent(matcher, forMatcher);
+      if (existing != null) {
+        forMatcher = existing;
+      }
+    }
+
+    CapabilityFingerprint requestFingerprint = requested.fingerprint();
+    Results forSlot = forMatcher.get(slot.getFingerprint());
+    if (forSlot != null) {
+      Boolean cached = forSlot.get(requestFingerprint);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached;
+      }
+    }
+
+    misses.incrementAndGet();
+    boolean match = slot.computeMatch(requested);
+    if (forSlot == null) {
+      forSlot = new Results();
+      Results existing = forMatcher.putIfAbsent(slot.getFingerprint(), forSlot);
+      if (existing != null) {
+        forSlot = existing;
+      }
+    }
+    if (size.incrementAndGet() > maxEntries && !evictOneSlot(forSlot)) {
+      // all the results are for that slot.
+      size.decrementAndGet();
+      return match;
+    }
+    if (forSlot.put(requestFingerprint, match) != null) {
+      // computed concurrently by another thread.
+      size.decrementAndGet();
+    }
+    return match;
+  }
+
+  /**
+   * drops the results of a slot, other than the one being filled.
+   *
+   * @return false if there was no other slot to drop.
+   */
+  private boolean evictOneSlot(Results filled) {
+    for (ConcurrentMap<CapabilityFingerprint, Results> forMatcher : results.values()) {
+      for (Map.Entry<CapabilityFingerprint, Results> entry : forMatcher.entrySet()) {
+        Results forSlot = entry.getValue();
+        if (forSlot != filled && !forSlot.isEmpty() && forMatcher.remove(entry.getKey(), forSlot)) {
+          size.addAndGet(-forSlot.size());
+          evictions.incrementAndGet();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * drops the cached results of a matcher, typically when a proxy using it registers or leaves.
+   */
+  public void invalidate(CapabilityMatcher matcher) {
+    ConcurrentMap<CapabilityFingerprint, Results> forMatcher = results.remove(matcher);
+    if (forMatcher != null) {
+      for (Results forSlot : forMatcher.values()) {
+        size.addAndGet(-forSlot.size());
+      }
+    }
+    invalidations.incrementAndGet();
+  }
+
+  /**
+   * drops all the cached results.
+   */
+  public void invalidate() {
+    results.clear();
+    size.set(0);
+    invalidations.incrementAndGet();
+  }
+
+  /**
+   * @return the number of matches answered from the cache, 0 with the default matcher only.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of matches that had to go through a custom capability matcher.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of times the results of a matcher, or all of them, were dropped.
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * @return the number of times the results of a slot were dropped because the cache was full.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the approximate number of cached results.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public String toString() {
+    return "MatchCache{hits=" + hits + ", misses=" + misses + ", invalidations=" + invalidations
+           + ", evictions=" + evictions + ", size=" + size + "}";
+  }
+
+  /**
+   * the results for the capabilities of a slot, by requested capabilities.
+   */
+  private static class Results {
+    private final ConcurrentMap<CapabilityFingerprint, Boolean> byRequest =
+        new ConcurrentHashMap<CapabilityFingerprint, Boolean>();
+
+    Boolean get(CapabilityFingerprint request) {
+      return byRequest.get(request);
+    }
+
+    Boolean put(CapabilityFingerprint request, boolean match) {
+      return byRequest.put(request, match);
+    }
+
+    int size() {
+      return byRequest.size();
+    }
+
+    boolean isEmpty() {
+      return byRequest.isEmpty();
+    }
+  }
+}
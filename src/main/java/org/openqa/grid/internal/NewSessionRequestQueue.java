@@ -21,13 +21,28 @@ import com.google.common.base.Predicate;
 
 import net.jcip.annotations.ThreadSafe;
 
+import org.openqa.grid.common.exception.GridException;
+import org.openqa.grid.internal.listeners.KeyedPrioritizer;
 import org.openqa.grid.internal.listeners.Prioritizer;
+import org.openqa.grid.internal.utils.CapabilityKey;
+import org.openqa.grid.internal.utils.CapabilityMatcher;
 import org.openqa.grid.web.servlet.handler.RequestHandler;
 import org.openqa.selenium.remote.DesiredCapabilities;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
@@ -35,13 +50,35 @@ import java.util.logging.Logger;
  *
  * Currently still uses the readerwriterlock/condition model that is used in the
  * Registry and is tightly coupled to the registry
+ *
+ * Waiting requests are grouped in buckets by {@link CapabilityKey} when the registry uses the
+ * default capability matcher. When all the proxies also match the requests that way, see
+ * {@link CapabilityCatalog#canAnswer()}, all the requests of a bucket are matched the same way, so
+ * once the first request of a bucket can't be assigned, the rest of the bucket is skipped for that
+ * pass. That is decided for the whole grid: as soon as one proxy has a custom matcher or redefines
+ * how it hands out sessions, every request of every bucket is tried on each pass. With a custom
+ * matcher on the registry every request gets a bucket of its own.
+ *
+ * The requests are kept in the order they are served, both in their bucket and across all the
+ * buckets: arrival order, or priority order with a prioritizer. The priority key of a request is
+ * computed when it is queued with a {@link KeyedPrioritizer}, another prioritizer is asked to
+ * compare the requests as they are queued. The order is only rebuilt when the prioritizer changes.
+ * Processing the queue then merges the buckets in place, or walks all the requests in order when
+ * each of them has a bucket of its own, without sorting anything.
  */
 @ThreadSafe
 class NewSessionRequestQueue {
 
   private static final Logger log = Logger.getLogger(NewSessionRequestQueue.class.getName());
 
-  private final List<RequestHandler> newSessionRequests = new ArrayList<RequestHandler>();
+  private final Map<Object, Bucket> buckets = new LinkedHashMap<Object, Bucket>();
+  private final Map<RequestHandler, Waiter> waiters = new IdentityHashMap<RequestHandler, Waiter>();
+  // all the waiters, in the order they are served.
+  private NavigableSet<Waiter> ordered = new TreeSet<Waiter>(QUEUE_ORDER);
+  private long sequence = 0;
+  // the prioritizer the order of the waiters comes from, null if they are in arrival order.
+  private Prioritizer orderedBy = null;
+  private Comparator<Waiter> order = QUEUE_ORDER;
 
 
   /**
@@ -49,7 +86,22 @@ class NewSessionRequestQueue {
    * @param request the RequestHandler to add
    */
   public synchronized void add(RequestHandler request) {
-    newSessionRequests.add(request);
+    if (waiters.containsKey(request)) {
+      return;
+    }
+    useOrderOf(request.getRegistry().getPrioritizer());
+    Comparable<Object> priority = priorityKey(keyedBy(orderedBy), request);
+    Object key = bucketKey(request);
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new Bucket(key, request.getRequest().getDesiredCapabilities(), order);
+      buckets.put(key, bucket);
+    }
+    Waiter waiter = new Waiter(request, sequence++, bucket);
+    waiter.priority = priority;
+    bucket.waiters.add(waiter);
+    ordered.add(waiter);
+    waiters.put(request, waiter);
   }
 
   /**
@@ -61,19 +113,126 @@ class NewSessionRequestQueue {
 
   public synchronized void processQueue(Predicate<RequestHandler> handlerConsumer,
                                         Prioritizer prioritizer) {
+    process(new ArrayList<Bucket>(buckets.values()), handlerConsumer, prioritizer);
+  }
 
-    final List<RequestHandler> copy;
-    if (prioritizer != null) {
-      copy = new ArrayList<RequestHandler>(newSessionRequests);
-      Collections.sort(copy);
-    } else {
-      copy = newSessionRequests;
+  /**
+   * Processes the entries of this queue that could be hosted by a given capacity, typically the
+   * capabilities of a test slot that has just been released. Only the buckets matching those
+   * capabilities are looked at.
+   *
+   * @param capacity        the capabilities of the resource that became available
+   * @param matcher         the matcher deciding if a bucket can use that resource
+   * @param handlerConsumer The consumer that returns true if it has taken the item from the queue
+   * @param prioritizer     The prioritizer to use
+   */
+  public synchronized void processQueue(Map<String, Object> capacity, CapabilityMatcher matcher,
+                                        Predicate<RequestHandler> handlerConsumer,
+                                        Prioritizer prioritizer) {
+    List<Bucket> candidates = new ArrayList<Bucket>();
+    for (Bucket bucket : buckets.values()) {
+      if (bucket.mayMatch(capacity, matcher)) {
+        candidates.add(bucket);
+      }
     }
+    process(candidates, handlerConsumer, prioritizer);
+  }
+
+  /**
+   * Processes the entries of this queue that could be hosted by a test slot that has just been
+   * released. Meant to be called from {@link org.openqa.grid.internal.listeners.CapacityListener}.
+   *
+   * @param slot            the slot that became available
+   * @param handlerConsumer The consumer that returns true if it has taken the item from the queue
+   * @param prioritizer     The prioritizer to use
+   */
+  public void processQueue(TestSlot slot, Predicate<RequestHandler> handlerConsumer,
+                           Prioritizer prioritizer) {
+    processQueue(slot.getCapabilities(), slot.getProxy().getCapabilityHelper(), handlerConsumer,
+                 prioritizer);
+  }
+
+  /**
+   * Processes the entries of this queue that could be hosted by any of the test slots of a proxy
+   * that has just registered. Meant to be called from
+   * {@link org.openqa.grid.internal.listeners.CapacityListener}.
+   *
+   * @param proxy           the proxy that became available
+   * @param handlerConsumer The consumer that returns true if it has taken the item from the queue
+   * @param prioritizer     The prioritizer to use
+   */
+  public synchronized void processQueue(RemoteProxy proxy,
+                                        Predicate<RequestHandler> handlerConsumer,
+                                        Prioritizer prioritizer) {
+    // slots are usually declared maxInstances times with the same capabilities.
+    Collection<Map<String, Object>> capacities = new HashSet<Map<String, Object>>();
+    for (TestSlot slot : proxy.getTestSlots()) {
+      capacities.add(slot.getCapabilities());
+    }
+    CapabilityMatcher matcher = proxy.getCapabilityHelper();
+    List<Bucket> candidates = new ArrayList<Bucket>();
+    for (Bucket bucket : buckets.values()) {
+      for (Map<String, Object> capacity : capacities) {
+        if (bucket.mayMatch(capacity, matcher)) {
+          candidates.add(bucket);
+          break;
+        }
+      }
+    }
+    process(candidates, handlerConsumer, prioritizer);
+  }
+
+  /**
+   * Walks the given buckets in queue order ( arrival, or priority if a prioritizer is set ),
+   * offering each request to the consumer. A bucket is dropped from the pass as soon as one of its
+   * requests isn't taken, unless some proxy may treat the requests of a bucket differently.
+   */
+  private void process(List<Bucket> candidates, Predicate<RequestHandler> handlerConsumer,
+                       Prioritizer prioritizer) {
+    if (candidates.isEmpty()) {
+      return;
+    }
+    boolean skipBucketOnMiss = isMatchedByBucket(candidates.get(0));
+    useOrderOf(prioritizer);
 
     List<RequestHandler> matched = new ArrayList<RequestHandler>();
-    for (RequestHandler request : copy) {
-      if (handlerConsumer.apply(request)) {
-        matched.add(request);
+    if (buckets.size() == waiters.size()) {
+      // a bucket per request, typically with a custom matcher. Merging as many buckets would cost
+      // a heap operation per request, the requests are already in order across the buckets.
+      Set<Bucket> only = null;
+      if (candidates.size() < buckets.size()) {
+        only = Collections.newSetFromMap(new IdentityHashMap<Bucket, Boolean>());
+        only.addAll(candidates);
+      }
+      Cursor cursor = new Cursor(ordered);
+      while (cursor.advance()) {
+        if ((only == null || only.contains(cursor.head.bucket))
+            && handlerConsumer.apply(cursor.head.handler)) {
+          matched.add(cursor.head.handler);
+        }
+      }
+    } else {
+      PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(candidates.size(),
+          new Comparator<Cursor>() {
+            public int compare(Cursor a, Cursor b) {
+              return order.compare(a.head, b.head);
+            }
+          });
+      for (Bucket bucket : candidates) {
+        Cursor cursor = new Cursor(bucket.waiters);
+        if (cursor.advance()) {
+          cursors.add(cursor);
+        }
+      }
+      while (!cursors.isEmpty()) {
+        Cursor cursor = cursors.poll();
+        boolean taken = handlerConsumer.apply(cursor.head.handler);
+        if (taken) {
+          matched.add(cursor.head.handler);
+        }
+        if ((taken || !skipBucketOnMiss) && cursor.advance()) {
+          cursors.add(cursor);
+        }
       }
     }
     for (RequestHandler req : matched) {
@@ -88,16 +247,28 @@ class NewSessionRequestQueue {
    * clear the entire list of requests
    */
   public synchronized void clearNewSessionRequests() {
-    newSessionRequests.clear();
+    buckets.clear();
+    waiters.clear();
+    ordered.clear();
   }
 
   /**
    * Remove a specific request
    * @param request The request to remove
-   * @return A boolean result from doing a newSessionRequest.remove(request).
+   * @return true if the request was in the queue.
    */
   public synchronized boolean removeNewSessionRequest(RequestHandler request) {
-    return newSessionRequests.remove(request);
+    Waiter waiter = waiters.remove(request);
+    if (waiter == null) {
+      return false;
+    }
+    Bucket bucket = waiter.bucket;
+    removeFrom(bucket.waiters, waiter);
+    removeFrom(ordered, waiter);
+    if (bucket.waiters.isEmpty()) {
+      buckets.remove(bucket.key);
+    }
+    return true;
   }
 
   /**
@@ -107,8 +278,10 @@ class NewSessionRequestQueue {
    */
   public synchronized Iterable<DesiredCapabilities> getDesiredCapabilities() {
     List<DesiredCapabilities> result = new ArrayList<DesiredCapabilities>();
-    for (RequestHandler req : newSessionRequests) {
-      result.add(new DesiredCapabilities(req.getRequest().getDesiredCapabilities()));
+    for (Bucket bucket : buckets.values()) {
+      for (Waiter waiter : bucket.waiters) {
+        result.add(new DesiredCapabilities(waiter.handler.getRequest().getDesiredCapabilities()));
+      }
     }
     return result;
   }
@@ -118,12 +291,203 @@ class NewSessionRequestQueue {
    * @return the size of the queue
    */
   public synchronized int getNewSessionRequestCount() {
-    return newSessionRequests.size();
+    return waiters.size();
   }
 
   public synchronized void stop(){
-    for (RequestHandler newSessionRequest : newSessionRequests) {
+    for (RequestHandler newSessionRequest : waiters.keySet()) {
       newSessionRequest.stop();
     }
   }
+
+  /**
+   * a prioritizer that doesn't compare the same requests the same way over time leaves the sets
+   * unable to find a waiter, it is then looked up by identity.
+   */
+  private static void removeFrom(NavigableSet<Waiter> set, Waiter waiter) {
+    if (set.remove(waiter)) {
+      return;
+    }
+    for (Iterator<Waiter> it = set.iterator(); it.hasNext(); ) {
+      if (it.next() == waiter) {
+        it.remove();
+        log.warning("The prioritizer doesn't always order the requests the same way");
+        return;
+      }
+    }
+  }
+
+  /**
+   * makes sure the waiters are ordered by that prioritizer, recomputing their priority keys and
+   * reordering them if the prioritizer changed. The sets are only replaced once all of them are
+   * built, so a prioritizer failing leaves the queue as it was.
+   */
+  private void useOrderOf(Prioritizer prioritizer) {
+    if (prioritizer == orderedBy) {
+      return;
+    }
+    KeyedPrioritizer<?> keyed = keyedBy(prioritizer);
+    // a prioritizer only knowing how to compare is asked to, once per pair as the sets are built.
+    Comparator<Waiter> newOrder =
+        prioritizer != null && keyed == null ? PRIORITY_ORDER : QUEUE_ORDER;
+    Map<Waiter, Comparable<Object>> keys = new IdentityHashMap<Waiter, Comparable<Object>>();
+    for (Waiter waiter : waiters.values()) {
+      keys.put(waiter, priorityKey(keyed, waiter.handler));
+    }
+    Map<Waiter, Comparable<Object>> previous = new IdentityHashMap<Waiter, Comparable<Object>>();
+    Map<Bucket, NavigableSet<Waiter>> sorted = new IdentityHashMap<Bucket, NavigableSet<Waiter>>();
+    NavigableSet<Waiter> all = new TreeSet<Waiter>(newOrder);
+    try {
+      for (Waiter waiter : waiters.values()) {
+        previous.put(waiter, waiter.priority);
+        waiter.priority = keys.get(waiter);
+      }
+      for (Bucket bucket : buckets.values()) {
+        // one by one, addAll would trust the order of the old set.
+        NavigableSet<Waiter> content = new TreeSet<Waiter>(newOrder);
+        for (Waiter waiter : bucket.waiters) {
+          content.add(waiter);
+          all.add(waiter);
+        }
+        sorted.put(bucket, content);
+      }
+    } catch (RuntimeException e) {
+      // keys that can't be compared with each other.
+      for (Map.Entry<Waiter, Comparable<Object>> entry : previous.entrySet()) {
+        entry.getKey().priority = entry.getValue();
+      }
+      throw e;
+    }
+    for (Map.Entry<Bucket, NavigableSet<Waiter>> entry : sorted.entrySet()) {
+      entry.getKey().waiters = entry.getValue();
+    }
+    ordered = all;
+    order = newOrder;
+    orderedBy = prioritizer;
+  }
+
+  private static KeyedPrioritizer<?> keyedBy(Prioritizer prioritizer) {
+    return prioritizer instanceof KeyedPrioritizer ? (KeyedPrioritizer<?>) prioritizer : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Comparable<Object> priorityKey(KeyedPrioritizer<?> prioritizer,
+                                                RequestHandler request) {
+    if (prioritizer == null) {
+      return null;
+    }
+    Comparable<?> key = prioritizer.getPriorityKey(request.getRequest().getDesiredCapabilities());
+    if (key == null) {
+      throw new GridException(
+          "The prioritizer " + prioritizer.getClass().getName() + " gave no priority key for "
+          + request.getRequest().getDesiredCapabilities());
+    }
+    return (Comparable<Object>) key;
+  }
+
+  /**
+   * @return true if all the proxies treat the requests of a bucket the same way, so that once one
+   *         of them can't be assigned the others can't either. The proxies are checked one by one
+   *         by the {@link CapabilityCatalog} of the hub.
+   */
+  private static boolean isMatchedByBucket(Bucket bucket) {
+    HubRegistryInterface registry = bucket.waiters.first().handler.getRegistry();
+    ProxySet proxies = registry == null ? null : registry.getAllProxies();
+    return proxies != null && proxies.getCapabilityCatalog().canAnswer();
+  }
+
+  private static Object bucketKey(RequestHandler request) {
+    if (CapabilityKey.isKeyedBy(request.getRegistry().getCapabilityMatcher())) {
+      return CapabilityKey.of(request.getRequest().getDesiredCapabilities());
+    }
+    // a custom matcher may look at anything, the request can't share its bucket. Not the request
+    // itself, the requests waiting for a session are all equal.
+    return new Object();
+  }
+
+  private static final Comparator<Waiter> ARRIVAL_ORDER = new Comparator<Waiter>() {
+    public int compare(Waiter a, Waiter b) {
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  // by priority key first when the waiters have one.
+  private static final Comparator<Waiter> QUEUE_ORDER = new Comparator<Waiter>() {
+    public int compare(Waiter a, Waiter b) {
+      if (a.priority != null && b.priority != null) {
+        int c = a.priority.compareTo(b.priority);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return ARRIVAL_ORDER.compare(a, b);
+    }
+  };
+
+  private static final Comparator<Waiter> PRIORITY_ORDER = new Comparator<Waiter>() {
+    public int compare(Waiter a, Waiter b) {
+      int c = a.handler.compareTo(b.handler);
+      return c != 0 ? c : ARRIVAL_ORDER.compare(a, b);
+    }
+  };
+
+  private static class Bucket {
+    private final Object key;
+    // any request of the bucket, they all match the same way.
+    private final Map<String, Object> capabilities;
+    private NavigableSet<Waiter> waiters;
+
+    Bucket(Object key, Map<String, Object> capabilities, Comparator<Waiter> order) {
+      this.key = key;
+      this.capabilities = capabilities;
+      this.waiters = new TreeSet<Waiter>(order);
+    }
+
+    /**
+     * @return false if none of the requests of the bucket can be hosted by that capacity. Any
+     *         request of the bucket stands for all of them only if the matcher is the default one.
+     */
+    boolean mayMatch(Map<String, Object> capacity, CapabilityMatcher matcher) {
+      if (CapabilityKey.isKeyedBy(matcher)) {
+        return matcher.matches(capacity, capabilities);
+      }
+      for (Waiter waiter : waiters) {
+        if (matcher.matches(capacity, waiter.handler.getRequest().getDesiredCapabilities())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static class Waiter {
+    private final RequestHandler handler;
+    private final long sequence;
+    private final Bucket bucket;
+    private Comparable<Object> priority;
+
+    Waiter(RequestHandler handler, long sequence, Bucket bucket) {
+      this.handler = handler;
+      this.sequence = sequence;
+      this.bucket = bucket;
+    }
+  }
+
+  /**
+   * walks the waiters of a bucket, or all of them, from waiter to waiter, so that the set can be
+   * changed meanwhile.
+   */
+  private static class Cursor {
+    private final NavigableSet<Waiter> waiters;
+    private Waiter head;
+
+    Cursor(NavigableSet<Waiter> waiters) {
+      this.waiters = waiters;
+    }
+
+    boolean advance() {
+      head = head == null ? (waiters.isEmpty() ? null : waiters.first()) : waiters.higher(head);
+      return head != null;
+    }
+  }
 }
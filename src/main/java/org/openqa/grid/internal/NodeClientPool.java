@@ -0,0 +1,217 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * The http clients used to talk to the nodes. Each node gets its own pool of keep-alive
+ * connections per timeout profile, shared by all the sessions running on that node, so that
+ * the connection to the node is set up once rather than for every command.
+ * <p/>
+ * The number of connections to a node is capped by the maximum number of sessions it accepts.
+ * The clients of a node are closed when it leaves the grid.
+ */
+@ThreadSafe
+public class NodeClientPool {
+
+  private static final Logger log = Logger.getLogger(NodeClientPool.class.getName());
+
+  private final ConcurrentMap<ClientKey, PooledClient> clients =
+      new ConcurrentHashMap<ClientKey, PooledClient>();
+
+  /**
+   * @param proxy             the node to talk to.
+   * @param connectionTimeout the connection timeout in ms, 0 for none.
+   * @param socketTimeout     the socket timeout in ms, 0 for none.
+   * @return a client reusing the connections to that node opened with the same timeouts.
+   */
+  public HttpClient getClient(RemoteProxy proxy, int connectionTimeout, int socketTimeout) {
+    ClientKey key = new ClientKey(proxy.getId(), connectionTimeout, socketTimeout);
+    PooledClient client = clients.get(key);
+    if (client == null) {
+      PooledClient created = new PooledClient(proxy, connectionTimeout, socketTimeout);
+      client = clients.putIfAbsent(key, created);
+      if (client == null) {
+        client = created;
+      } else {
+        created.close();
+      }
+    }
+    return client.client;
+  }
+
+  /**
+   * closes the connections to that node, for all the timeout profiles.
+   */
+  public void close(RemoteProxy proxy) {
+    String id = proxy.getId();
+    for (Iterator<Map.Entry<ClientKey, PooledClient>> it = clients.entrySet().iterator();
+         it.hasNext(); ) {
+      Map.Entry<ClientKey, PooledClient> entry = it.next();
+      if (entry.getKey().proxyId.equals(id)) {
+        it.remove();
+        entry.getValue().close();
+      }
+    }
+  }
+
+  /**
+   * closes the connections to all the nodes.
+   */
+  public void closeAll() {
+    for (Iterator<PooledClient> it = clients.values().iterator(); it.hasNext(); ) {
+      PooledClient client = it.next();
+      it.remove();
+      client.close();
+    }
+  }
+
+  /**
+   * @return the state of the connections to that node, summed over its timeout profiles.
+   */
+  public PoolStats getStats(RemoteProxy proxy) {
+    return sum(proxy.getId());
+  }
+
+  /**
+   * @return the state of the connections to all the nodes.
+   */
+  public PoolStats getTotalStats() {
+    return sum(null);
+  }
+
+  private PoolStats sum(String proxyId) {
+    int leased = 0;
+    int pending = 0;
+    int available = 0;
+    int max = 0;
+    for (Map.Entry<ClientKey, PooledClient> entry : clients.entrySet()) {
+      if (proxyId == null || entry.getKey().proxyId.equals(proxyId)) {
+        PoolStats stats = entry.getValue().connections.getTotalStats();
+        leased += stats.getLeased();
+        pending += stats.getPending();
+        available += stats.getAvailable();
+        max += stats.getMax();
+      }
+    }
+    return new PoolStats(leased, pending, available, max);
+  }
+
+  @Override
+  public String toString() {
+    return "NodeClientPool{clients=" + clients.size() + ", " + getTotalStats() + "}";
+  }
+
+  private static class PooledClient {
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient client;
+
+    @SuppressWarnings("deprecation")
+    PooledClient(RemoteProxy proxy, int connectionTimeout, int socketTimeout) {
+      connections = new PoolingHttpClientConnectionManager(
+          RegistryBuilder.<ConnectionSocketFactory>create()
+              .register("http", PlainConnectionSocketFactory.getSocketFactory())
+              .register("https", SSLConnectionSocketFactory.getSocketFactory())
+              .build());
+      // a node never has more commands in flight than sessions running.
+      int max = Math.max(1, proxy.getMaxNumberOfConcurrentTestSessions());
+      connections.setMaxTotal(max);
+      connections.setDefaultMaxPerRoute(max);
+
+      // same settings as HttpClientFactory#getGridHttpClient. The redirects are sent back to
+      // the client as they are.
+      client = HttpClientBuilder.create()
+          .setConnectionManager(connections)
+          .setDefaultSocketConfig(SocketConfig.custom()
+                                      .setSoReuseAddress(true)
+                                      .setSoTimeout(socketTimeout)
+                                      .build())
+          .setDefaultRequestConfig(RequestConfig.custom()
+                                       .setStaleConnectionCheckEnabled(true)
+                                       .setConnectTimeout(connectionTimeout)
+                                       .setConnectionRequestTimeout(connectionTimeout)
+                                       .setSocketTimeout(socketTimeout)
+                                       .build())
+          .setRoutePlanner(new SystemDefaultRoutePlanner(new DefaultSchemePortResolver(),
+                                                         ProxySelector.getDefault()))
+          .disableRedirectHandling()
+          .build();
+    }
+
+    void close() {
+      try {
+        client.close();
+      } catch (IOException e) {
+        log.warning("Error closing the connections to a node: " + e.getMessage());
+      }
+    }
+  }
+
+  private static class ClientKey {
+    private final String proxyId;
+    private final int connectionTimeout;
+    private final int socketTimeout;
+
+    ClientKey(String proxyId, int connectionTimeout, int socketTimeout) {
+      this.proxyId = proxyId;
+      this.connectionTimeout = connectionTimeout;
+      this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ClientKey)) {
+        return false;
+      }
+      ClientKey that = (ClientKey) o;
+      return connectionTimeout == that.connectionTimeout && socketTimeout == that.socketTimeout
+             && proxyId.equals(that.proxyId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * proxyId.hashCode() + connectionTimeout) + socketTimeout;
+    }
+  }
+}
@@ -21,45 +21,83 @@ import net.jcip.annotations.ThreadSafe;
 
 import org.openqa.grid.common.exception.CapabilityNotPresentOnTheGridException;
 import org.openqa.grid.common.exception.GridException;
+import org.openqa.grid.internal.listeners.CapacityListener;
 import org.openqa.selenium.remote.DesiredCapabilities;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A set of RemoteProxies.
  *
- * Obeys the iteration guarantees of CopyOnWriteArraySet
+ * The proxies are indexed by id, adding, removing or finding one is constant time whatever the
+ * size of the grid. Iterating gives a snapshot of the set, in registration order, that isn't
+ * affected by the changes made while iterating. The snapshot is built on the first iteration after
+ * a change, so a burst of registrations doesn't copy the set for each proxy.
+ *
+ * The proxies are also kept ordered by load, the number of slots in use over the maximum number
+ * of sessions, updated as the slots are claimed and released. New sessions are placed on the
+ * least loaded proxy without sorting the set. Proxies that redefine how their load is computed (
+ * {@link RemoteProxy#getResourceUsageInPercent()} or compareTo ) can't be ordered that way, when
+ * one of them is registered the set is sorted on each request as before.
+ *
+ * Before asking the proxies, the {@link SlotIndex} tells whether any of them has an available
+ * slot for the request, and which ones to skip.
+ *
+ * The resources shared by the proxies, like the connections to the nodes, are not held here but
+ * by the {@link HubServices} of the registry.
  */
 @ThreadSafe
 public class ProxySet implements Iterable<RemoteProxy> {
 
-  private final Set<RemoteProxy> proxies = new CopyOnWriteArraySet<RemoteProxy>();
+  private final ConcurrentMap<String, Registered> proxies =
+      new ConcurrentHashMap<String, Registered>();
+  private final AtomicLong registrations = new AtomicLong();
+  // incremented after each change of the set.
+  private final AtomicLong version = new AtomicLong();
+  private volatile Snapshot snapshot = new Snapshot(0, Collections.<RemoteProxy>emptyList());
 
   private static final Logger log = Logger.getLogger(ProxySet.class.getName());
   private volatile boolean throwOnCapabilityNotPresent = true;
+  private final CapabilityCatalog capabilities = new CapabilityCatalog();
+  private final SlotIndex slotIndex = new SlotIndex();
+
+  private final NavigableSet<Load> byLoad = new ConcurrentSkipListSet<Load>(LEAST_LOADED_FIRST);
+  private final ConcurrentMap<RemoteProxy, TrackedLoad> loads =
+      new ConcurrentHashMap<RemoteProxy, TrackedLoad>();
+  private final AtomicLong loadSequence = new AtomicLong();
+  private final AtomicInteger proxiesWithCustomLoad = new AtomicInteger();
 
   public ProxySet(boolean throwOnCapabilityNotPresent) {
     this.throwOnCapabilityNotPresent = throwOnCapabilityNotPresent;
   }
 
   /**
-   * killing the timeout detection threads.
+   * stopping the threads of the proxies.
    */
   public void teardown() {
-    for (RemoteProxy proxy : proxies) {
+    for (RemoteProxy proxy : this) {
       proxy.teardown();
     }
   }
 
   public boolean hasCapability(Map<String, Object> requestedCapability) {
-    for (RemoteProxy proxy : proxies) {
+    if (capabilities.canAnswer()) {
+      return capabilities.isOffered(requestedCapability);
+    }
+    for (RemoteProxy proxy : this) {
       if (proxy.hasCapability(requestedCapability)) {
         return true;
       }
@@ -76,26 +114,51 @@ public class ProxySet implements Iterable<RemoteProxy> {
     // Find the original proxy. While the supplied one is logically equivalent, it may be a fresh object with
     // an empty TestSlot list, which doesn't figure into the proxy equivalence check.  Since we want to free up
     // those test sessions, we need to operate on that original object.
-    for (RemoteProxy p : proxies) {
-      if (p.equals(proxy)) {
-        proxies.remove(p);
-        return p;
-      }
+    Registered registered = proxies.get(proxy.getId());
+    if (registered == null || !registered.proxy.equals(proxy)
+        || !proxies.remove(proxy.getId(), registered)) {
+      throw new IllegalStateException("Did not contain proxy" + proxy);
+    }
+    version.incrementAndGet();
+    RemoteProxy p = registered.proxy;
+    capabilities.remove(p);
+    untrackLoad(p);
+    HubServices services = HubServices.of(p);
+    if (services != null) {
+      services.proxyRemoved(p);
     }
-    throw new IllegalStateException("Did not contain proxy" + proxy);
+    return p;
   }
 
+  /**
+   * Adds the proxy to the set. If the registry of the proxy is a {@link CapacityListener}, it is
+   * notified that the slots of the new proxy are available.
+   */
   public void add(RemoteProxy proxy) {
-    proxies.add(proxy);
+    Registered registered = new Registered(proxy, registrations.incrementAndGet());
+    if (proxies.putIfAbsent(proxy.getId(), registered) == null) {
+      version.incrementAndGet();
+      capabilities.add(proxy);
+      trackLoad(proxy);
+      HubServices services = HubServices.of(proxy);
+      if (services != null) {
+        services.proxyAdded(proxy);
+      }
+      HubRegistryInterface registry = proxy.getRegistry();
+      if (registry instanceof CapacityListener) {
+        ((CapacityListener) registry).capacityAvailable(proxy);
+      }
+    }
   }
 
   public boolean contains(RemoteProxy o) {
-    return proxies.contains(o);
+    Registered registered = proxies.get(o.getId());
+    return registered != null && registered.proxy.equals(o);
   }
 
   public List<RemoteProxy> getBusyProxies() {
     List<RemoteProxy> res = new ArrayList<RemoteProxy>();
-    for (RemoteProxy proxy : proxies) {
+    for (RemoteProxy proxy : this) {
       if (proxy.isBusy()) {
         res.add(proxy);
       }
@@ -107,12 +170,8 @@ public class ProxySet implements Iterable<RemoteProxy> {
     if (id == null) {
       return null;
     }
-    for (RemoteProxy p : proxies) {
-      if (id.equals(p.getId())) {
-        return p;
-      }
-    }
-    return null;
+    Registered registered = proxies.get(id);
+    return registered == null ? null : registered.proxy;
   }
 
 
@@ -121,17 +180,42 @@ public class ProxySet implements Iterable<RemoteProxy> {
   }
 
   private List<RemoteProxy> getSorted() {
-    List<RemoteProxy> sorted = new ArrayList<RemoteProxy>(proxies);
+    List<RemoteProxy> sorted = new ArrayList<RemoteProxy>(getSnapshot());
     Collections.sort(sorted);
     return sorted;
   }
 
   public TestSession getNewSession(Map<String, Object> desiredCapabilities) {
+    if (proxiesWithCustomLoad.get() == 0) {
+      long current = version.get();
+      SlotIndex.Index index = slotIndex.get(current, getSnapshot());
+      long[] candidates = null;
+      if (index != null) {
+        candidates = index.candidates(desiredCapabilities);
+        if (!index.anyAvailable(candidates)) {
+          return null;
+        }
+      }
+      // least loaded first, to avoid putting all the load of the first proxies.
+      for (Load load : byLoad) {
+        if (candidates != null && !index.anyAvailable(candidates, load.proxy)) {
+          continue;
+        }
+        TestSession session = load.proxy.getNewSession(desiredCapabilities);
+        if (session != null) {
+          return session;
+        }
+      }
+      return null;
+    }
+
     // sort the proxies first, by default by total number of
     // test running, to avoid putting all the load of the first
     // proxies.
     List<RemoteProxy> sorted = getSorted();
-    log.info("Available nodes: " + sorted);
+    if (log.isLoggable(Level.FINE)) {
+      log.fine("Available nodes: " + sorted);
+    }
 
     for (RemoteProxy proxy : sorted) {
       TestSession session = proxy.getNewSession(desiredCapabilities);
@@ -142,8 +226,160 @@ public class ProxySet implements Iterable<RemoteProxy> {
     return null;
   }
 
+  /**
+   * a slot of that proxy now hosts a session.
+   */
+  void slotClaimed(RemoteProxy proxy) {
+    slotIndex.refresh(proxy);
+    updateLoad(proxy);
+  }
+
+  /**
+   * a slot of that proxy has been released.
+   */
+  void slotReleased(RemoteProxy proxy) {
+    slotIndex.refresh(proxy);
+    updateLoad(proxy);
+  }
+
+  private void trackLoad(RemoteProxy proxy) {
+    if (hasCustomLoad(proxy)) {
+      proxiesWithCustomLoad.incrementAndGet();
+    }
+    TrackedLoad tracked = new TrackedLoad();
+    synchronized (tracked) {
+      loads.put(proxy, tracked);
+      tracked.current = new Load(proxy, proxy.getTotalUsed(), loadSequence.incrementAndGet());
+      byLoad.add(tracked.current);
+    }
+  }
+
+  private void untrackLoad(RemoteProxy proxy) {
+    TrackedLoad tracked = loads.remove(proxy);
+    if (tracked == null) {
+      return;
+    }
+    if (hasCustomLoad(proxy)) {
+      proxiesWithCustomLoad.decrementAndGet();
+    }
+    synchronized (tracked) {
+      byLoad.remove(tracked.current);
+      tracked.current = null;
+    }
+  }
+
+  private void updateLoad(RemoteProxy proxy) {
+    TrackedLoad tracked = loads.get(proxy);
+    if (tracked == null) {
+      return;
+    }
+    synchronized (tracked) {
+      if (tracked.current == null) {
+        return;
+      }
+      Load previous = tracked.current;
+      // constant time for a BaseRemoteProxy, which keeps a counter of its used slots.
+      tracked.current = new Load(proxy, proxy.getTotalUsed(), loadSequence.incrementAndGet());
+      // add before removing, so that the proxy never disappears for a concurrent reader.
+      byLoad.add(tracked.current);
+      byLoad.remove(previous);
+    }
+  }
+
+  private static boolean hasCustomLoad(RemoteProxy proxy) {
+    try {
+      Class<?> c = proxy.getClass();
+      return c.getMethod("getResourceUsageInPercent").getDeclaringClass() != BaseRemoteProxy.class
+             || c.getMethod("compareTo", RemoteProxy.class).getDeclaringClass()
+                != BaseRemoteProxy.class;
+    } catch (NoSuchMethodException e) {
+      return true;
+    }
+  }
+
+  private static final Comparator<Load> LEAST_LOADED_FIRST = new Comparator<Load>() {
+    public int compare(Load a, Load b) {
+      // a.used / a.max compared to b.used / b.max
+      long left = (long) a.used * b.max;
+      long right = (long) b.used * a.max;
+      if (left != right) {
+        return left < right ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  /**
+   * the load of a proxy at a given time. Immutable, a new one replaces it in the ordered set.
+   */
+  private static class Load {
+    private final RemoteProxy proxy;
+    private final int used;
+    private final int max;
+    private final long sequence;
+
+    Load(RemoteProxy proxy, int used, long sequence) {
+      this.proxy = proxy;
+      this.used = used;
+      this.max = Math.max(1, proxy.getMaxNumberOfConcurrentTestSessions());
+      this.sequence = sequence;
+    }
+  }
+
+  private static class TrackedLoad {
+    private Load current;
+  }
+
   public Iterator<RemoteProxy> iterator() {
-    return proxies.iterator();
+    return getSnapshot().iterator();
+  }
+
+  /**
+   * @return the proxies in registration order, as of the last change of the set.
+   */
+  private List<RemoteProxy> getSnapshot() {
+    long current = version.get();
+    Snapshot s = snapshot;
+    if (s.version == current) {
+      return s.proxies;
+    }
+    // all the changes up to current are in the map. Later ones may be too, they have a newer
+    // version and the snapshot will be rebuilt anyway.
+    List<Registered> registered = new ArrayList<Registered>(proxies.values());
+    Collections.sort(registered, REGISTRATION_ORDER);
+    List<RemoteProxy> res = new ArrayList<RemoteProxy>(registered.size());
+    for (Registered r : registered) {
+      res.add(r.proxy);
+    }
+    res = Collections.unmodifiableList(res);
+    snapshot = new Snapshot(current, res);
+    return res;
+  }
+
+  private static final Comparator<Registered> REGISTRATION_ORDER = new Comparator<Registered>() {
+    public int compare(Registered a, Registered b) {
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  private static class Registered {
+    private final RemoteProxy proxy;
+    private final long sequence;
+
+    Registered(RemoteProxy proxy, long sequence) {
+      this.proxy = proxy;
+      this.sequence = sequence;
+    }
+  }
+
+  private static class Snapshot {
+    private final long version;
+    private final List<RemoteProxy> proxies;
+
+    Snapshot(long version, List<RemoteProxy> proxies) {
+      this.version = version;
+      this.proxies = proxies;
+    }
   }
 
   public int size() {
@@ -171,6 +407,13 @@ public class ProxySet implements Iterable<RemoteProxy> {
     }
   }
 
+  /**
+   * @return the distinct capabilities offered by the proxies.
+   */
+  public CapabilityCatalog getCapabilityCatalog() {
+    return capabilities;
+  }
+
   public void setThrowOnCapabilityNotPresent(boolean throwOnCapabilityNotPresent) {
     this.throwOnCapabilityNotPresent = throwOnCapabilityNotPresent;
   }
@@ -0,0 +1,36 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+/**
+ * To be implemented by the registry. Finds a session from its external key as it appears in a
+ * request, so that routing a command doesn't create a String and an {@link ExternalSessionKey}
+ * for each request. The registries not implementing it are asked for the session with
+ * {@link HubRegistryInterface#getExistingSession(ExternalSessionKey)}.
+ */
+public interface SessionIdLookup {
+
+  /**
+   * @param chars the characters holding the external key, typically the path of the request.
+   * @param start the index of the first character of the key.
+   * @param end   the index after the last character of the key.
+   * @return the active session with that external key, null if there is none.
+   */
+  public TestSession findSessionByExternalKey(CharSequence chars, int start, int end);
+
+}
@@ -0,0 +1,264 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.openqa.grid.internal.utils.CapabilityKey;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+import org.openqa.grid.internal.utils.SlotCapabilities;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bitsets over all the slots of the grid, to find the proxies able to host a new session without
+ * asking each of them.
+ * <p/>
+ * Each slot has an ordinal, the slots of a proxy being contiguous. For each distinct
+ * {@link CapabilityKey} offered, a bitset tells which slots offer it, and the slots matching a
+ * request are the union of the bitsets of the keys matching it, computed once per request key. A
+ * last bitset tells which slots are available: free, on a proxy below its maximum number of
+ * sessions. It is refreshed for a proxy each time one of its slots is claimed or released.
+ * Finding out if the grid can host a request right now is then an AND of two bitsets, and checking
+ * a proxy the same on its words.
+ * <p/>
+ * The bitsets are rebuilt, lazily, when the proxies change. Like the {@link CapabilityCatalog},
+ * the index only works for the proxies matching with the default matcher.
+ */
+@ThreadSafe
+class SlotIndex {
+
+  // the requests are clients input, don't let the candidates grow forever.
+  private static final int MAX_CANDIDATES = 1024;
+
+  // taken to read the index when refreshing the available slots, to rebuild it.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile Index index = null;
+
+  /**
+   * @param version the version of the set of proxies.
+   * @param proxies the proxies, as of that version.
+   * @return the index for that version, null if some proxies cannot be indexed.
+   */
+  Index get(long version, List<RemoteProxy> proxies) {
+    Index current = index;
+    if (current != null && current.version >= version) {
+      return current.indexable ? current : null;
+    }
+    lock.writeLock().lock();
+    try {
+      current = index;
+      if (current == null || current.version < version) {
+        current = new Index(version, proxies);
+        index = current;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return current.indexable ? current : null;
+  }
+
+  /**
+   * updates the available slots of that proxy, after one of its slots was claimed or released.
+   */
+  void refresh(RemoteProxy proxy) {
+    lock.readLock().lock();
+    try {
+      Index current = index;
+      if (current != null) {
+        current.refresh(proxy);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  static class Index {
+    private final long version;
+    private final boolean indexable;
+    private final int words;
+    private final Map<RemoteProxy, Range> ranges = new IdentityHashMap<RemoteProxy, Range>();
+    private final Map<CapabilityKey, Offer> offers = new HashMap<CapabilityKey, Offer>();
+    private final AtomicLongArray available;
+    private final ConcurrentMap<CapabilityKey, long[]> candidates =
+        new ConcurrentHashMap<CapabilityKey, long[]>();
+
+    Index(long version, List<RemoteProxy> proxies) {
+      this.version = version;
+      boolean all = true;
+      int slots = 0;
+      for (RemoteProxy proxy : proxies) {
+        all &= CapabilityCatalog.isIndexable(proxy);
+        Range range = new Range(proxy, slots);
+        ranges.put(proxy, range);
+        slots += range.slots.length;
+      }
+      indexable = all;
+      words = (slots + 63) >>> 6;
+      available = new AtomicLongArray(words);
+      if (!indexable) {
+        return;
+      }
+      for (Range range : ranges.values()) {
+        for (int i = 0; i < range.slots.length; i++) {
+          Map<String, Object> capabilities = range.slots[i].getCapabilities();
+          CapabilityKey key = CapabilityKey.of(capabilities);
+          Offer offer = offers.get(key);
+          if (offer == null) {
+            offer = new Offer(SlotCapabilities.of(capabilities), words);
+            offers.put(key, offer);
+          }
+          int ordinal = range.start + i;
+          offer.slots[ordinal >>> 6] |= 1L << ordinal;
+        }
+        refresh(range);
+      }
+    }
+
+    /**
+     * @return the slots matching the request, busy or not.
+     */
+    long[] candidates(Map<String, Object> requestedCapability) {
+      CapabilityKey key = CapabilityKey.of(requestedCapability);
+      long[] res = candidates.get(key);
+      if (res != null) {
+        return res;
+      }
+      res = new long[words];
+      RequestedCapabilities requested = RequestedCapabilities.of(requestedCapability);
+      for (Offer offer : offers.values()) {
+        if (requested.matches(offer.capabilities)) {
+          for (int w = 0; w < words; w++) {
+            res[w] |= offer.slots[w];
+          }
+        }
+      }
+      if (candidates.size() < MAX_CANDIDATES) {
+        candidates.put(key, res);
+      }
+      return res;
+    }
+
+    /**
+     * @return true if one of the candidate slots is available.
+     */
+    boolean anyAvailable(long[] candidates) {
+      for (int w = 0; w < words; w++) {
+        if ((candidates[w] & available.get(w)) != 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return true if one of the candidate slots of that proxy is available. Also true for a proxy
+     *         that registered after the index was built.
+     */
+    boolean anyAvailable(long[] candidates, RemoteProxy proxy) {
+      Range range = ranges.get(proxy);
+      if (range == null) {
+        return true;
+      }
+      int end = range.start + range.slots.length;
+      for (int ordinal = range.start; ordinal < end; ordinal = (ordinal | 63) + 1) {
+        int w = ordinal >>> 6;
+        long mask = wordMask(w, range.start, end);
+        if ((candidates[w] & available.get(w) & mask) != 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void refresh(RemoteProxy proxy) {
+      Range range = ranges.get(proxy);
+      if (indexable && range != null) {
+        refresh(range);
+      }
+    }
+
+    private void refresh(Range range) {
+      synchronized (range) {
+        RemoteProxy proxy = range.proxy;
+        boolean full = proxy.getTotalUsed() >= proxy.getMaxNumberOfConcurrentTestSessions();
+        int end = range.start + range.slots.length;
+        for (int ordinal = range.start; ordinal < end; ordinal = (ordinal | 63) + 1) {
+          int w = ordinal >>> 6;
+          long mask = wordMask(w, range.start, end);
+          long bits = 0;
+          if (!full) {
+            for (int o = ordinal; o < Math.min(end, (w + 1) << 6); o++) {
+              if (range.slots[o - range.start].getSession() == null) {
+                bits |= 1L << o;
+              }
+            }
+          }
+          long previous;
+          do {
+            previous = available.get(w);
+          } while (!available.compareAndSet(w, previous, (previous & ~mask) | bits));
+        }
+      }
+    }
+
+    /**
+     * @return the bits of word w that are between start, included, and end, excluded.
+     */
+    private static long wordMask(int w, int start, int end) {
+      int from = Math.max(start, w << 6) & 63;
+      int to = Math.min(end, (w + 1) << 6) - (w << 6);
+      long upTo = to == 64 ? -1L : (1L << to) - 1;
+      return upTo & (-1L << from);
+    }
+  }
+
+  /**
+   * the ordinals of the slots of a proxy.
+   */
+  private static class Range {
+    private final RemoteProxy proxy;
+    private final int start;
+    private final TestSlot[] slots;
+
+    Range(RemoteProxy proxy, int start) {
+      this.proxy = proxy;
+      this.start = start;
+      List<TestSlot> testSlots = proxy.getTestSlots();
+      this.slots = testSlots.toArray(new TestSlot[testSlots.size()]);
+    }
+  }
+
+  private static class Offer {
+    private final SlotCapabilities capabilities;
+    private final long[] slots;
+
+    Offer(SlotCapabilities capabilities, int words) {
+      this.capabilities = capabilities;
+      this.slots = new long[words];
+    }
+  }
+}
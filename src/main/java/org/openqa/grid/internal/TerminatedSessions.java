@@ -0,0 +1,201 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Why the last sessions were terminated, to answer the clients still sending commands to them.
+ * <p/>
+ * All the memory is allocated upfront: the terminations are kept in a ring of fixed capacity, the
+ * oldest one being forgotten when the ring is full or when it is older than the maximum age, and
+ * they are indexed by an open addressing table. A session is only known by a 64 bits fingerprint
+ * of its key and its reason by its ordinal, so an entry costs about 30 bytes and a million of them
+ * take about 30 MB. Two keys with the same fingerprint, which is very unlikely, would share their
+ * reason. A session terminated again is added anew with its last reason, its previous entry still
+ * taking room in the ring until it is the oldest.
+ */
+@ThreadSafe
+class TerminatedSessions {
+
+  // the reason of an entry replaced by a later termination of the same key, no longer indexed.
+  private static final byte REPLACED = -1;
+
+  private final int capacity;
+  private final long maxAgeMs;
+
+  // the ring, in termination order.
+  private final long[] fingerprints;
+  private final long[] terminatedAt;
+  private final byte[] reasons;
+  private int head = 0;
+  private int size = 0;
+
+  // linear probing on the fingerprints. The position in the ring + 1, 0 for an empty slot.
+  private final int[] index;
+  private final int mask;
+
+  /**
+   * @param capacity the number of terminations kept.
+   * @param maxAgeMs the time in ms a termination is kept, -1 to keep them until the ring is full.
+   */
+  TerminatedSessions(int capacity, long maxAgeMs) {
+    if (capacity <= 0 || capacity > 1 << 28) {
+      throw new IllegalArgumentException("Cannot keep " + capacity + " terminated sessions.");
+    }
+    this.capacity = capacity;
+    this.maxAgeMs = maxAgeMs;
+    fingerprints = new long[capacity];
+    terminatedAt = new long[capacity];
+    reasons = new byte[capacity];
+    // at most half full, to keep the probes short.
+    int tableSize = Integer.highestOneBit(capacity) << 2;
+    index = new int[tableSize];
+    mask = tableSize - 1;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  long getMaxAgeMs() {
+    return maxAgeMs;
+  }
+
+  /**
+   * @param now the current time in ms.
+   */
+  synchronized void add(ExternalSessionKey key, SessionTerminationReason reason, long now) {
+    long fingerprint = fingerprint(key.getKey());
+    int slot = find(fingerprint);
+    if (slot != -1) {
+      // terminated again, the entry moves to the head with its new reason and time. The old one
+      // stays in the ring until it is the oldest.
+      reasons[index[slot] - 1] = REPLACED;
+      removeSlot(slot);
+    }
+    expire(now);
+    if (size == capacity) {
+      removeOldest();
+    }
+    fingerprints[head] = fingerprint;
+    terminatedAt[head] = now;
+    reasons[head] = (byte) reason.ordinal();
+    slot = home(fingerprint);
+    while (index[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    index[slot] = head + 1;
+    head = (head + 1) % capacity;
+    size++;
+  }
+
+  /**
+   * @param now the current time in ms.
+   * @return why the session with that key was terminated, null if it isn't known.
+   */
+  synchronized SessionTerminationReason get(ExternalSessionKey key, long now) {
+    int slot = find(fingerprint(key.getKey()));
+    if (slot == -1) {
+      return null;
+    }
+    int position = index[slot] - 1;
+    if (isExpired(position, now)) {
+      return null;
+    }
+    return SessionTerminationReason.values()[reasons[position]];
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  private boolean isExpired(int position, long now) {
+    return maxAgeMs >= 0 && now - terminatedAt[position] > maxAgeMs;
+  }
+
+  private void expire(long now) {
+    while (size > 0 && isExpired(oldest(), now)) {
+      removeOldest();
+    }
+  }
+
+  private int oldest() {
+    return (head - size + capacity) % capacity;
+  }
+
+  private void removeOldest() {
+    int position = oldest();
+    if (reasons[position] == REPLACED) {
+      size--;
+      return;
+    }
+    int slot = home(fingerprints[position]);
+    while (index[slot] != position + 1) {
+      slot = (slot + 1) & mask;
+    }
+    removeSlot(slot);
+    size--;
+  }
+
+  private int find(long fingerprint) {
+    for (int slot = home(fingerprint); index[slot] != 0; slot = (slot + 1) & mask) {
+      if (fingerprints[index[slot] - 1] == fingerprint) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * empties a slot of the index, moving back the entries that would no longer be found.
+   */
+  private void removeSlot(int slot) {
+    int hole = slot;
+    for (int i = (slot + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+      int home = home(fingerprints[index[i] - 1]);
+      // the entry can fill the hole if the hole is between its home and where it is.
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        index[hole] = index[i];
+        hole = i;
+      }
+    }
+    index[hole] = 0;
+  }
+
+  private int home(long fingerprint) {
+    // murmur3 finalizer, the low bits of the fingerprint alone are not spread enough.
+    long h = fingerprint;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+
+  private static long fingerprint(String key) {
+    // FNV-1a
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+}
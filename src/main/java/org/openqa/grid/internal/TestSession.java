@@ -17,7 +17,6 @@ limitations under the License.
 
 package org.openqa.grid.internal;
 
-import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
 import com.google.common.net.MediaType;
 
@@ -35,6 +34,9 @@ import org.apache.http.util.EntityUtils;
 import org.openqa.grid.common.exception.ClientGoneException;
 import org.openqa.grid.common.exception.GridException;
 import org.openqa.grid.internal.listeners.CommandListener;
+import org.openqa.grid.internal.listeners.NodeHealthListener;
+import org.openqa.grid.internal.listeners.StreamingCommandListener;
+import org.openqa.grid.internal.utils.BufferPool;
 import org.openqa.grid.web.HubInterface;
 import org.openqa.grid.web.servlet.handler.LegacySeleniumRequest;
 import org.openqa.grid.web.servlet.handler.RequestType;
@@ -74,6 +76,8 @@ public class TestSession {
 
   private static final Logger log = Logger.getLogger(TestSession.class.getName());
   static final int MAX_IDLE_TIME_BEFORE_CONSIDERED_ORPHANED = 5000;
+  // used to stream the node responses to the clients.
+  private static final BufferPool STREAMING_BUFFERS = new BufferPool(16 * 1024, 256);
 
   private final String internalKey;
   private final TestSlot slot;
@@ -86,6 +90,8 @@ public class TestSession {
   private final TimeSource timeSource;
   private volatile boolean forwardingRequest;
   private final int MAX_NETWORK_LATENCY = 1000;
+  private volatile ActiveTestSessions activeSessions;
+  private volatile HttpClient nodeClient;
 
   public String getInternalKey() {
     return internalKey;
@@ -125,8 +131,21 @@ public class TestSession {
    * associate this session to the session provided by the remote.
    */
   public void setExternalKey(ExternalSessionKey externalKey) {
+    ExternalSessionKey previous = this.externalKey;
     this.externalKey = externalKey;
     sessionCreatedAt = lastActivity;
+    ActiveTestSessions sessions = activeSessions;
+    if (sessions != null) {
+      sessions.externalKeyAssigned(this, previous, externalKey);
+    }
+  }
+
+  /**
+   * the set of active sessions this session has been added to, notified when the external key
+   * changes.
+   */
+  void setActiveSessions(ActiveTestSessions activeSessions) {
+    this.activeSessions = activeSessions;
   }
 
   /**
@@ -193,14 +212,25 @@ public class TestSession {
 
 
   private HttpClient getClient() {
-    HubRegistryInterface reg = slot.getProxy().getRegistry();
-    int browserTimeout = reg.getConfiguration().getBrowserTimeout();
-    if (browserTimeout > 0){
-      final int selenium_server_cleanup_cycle = browserTimeout / 10;
-      browserTimeout += (selenium_server_cleanup_cycle + MAX_NETWORK_LATENCY);
-      browserTimeout *=2; // Lets not let this happen too often
+    HttpClient current = nodeClient;
+    if (current == null) {
+      RemoteProxy proxy = slot.getProxy();
+      HubRegistryInterface reg = proxy.getRegistry();
+      int browserTimeout = reg.getConfiguration().getBrowserTimeout();
+      if (browserTimeout > 0){
+        final int selenium_server_cleanup_cycle = browserTimeout / 10;
+        browserTimeout += (selenium_server_cleanup_cycle + MAX_NETWORK_LATENCY);
+        browserTimeout *=2; // Lets not let this happen too often
+      }
+      HubServices services = HubServices.of(reg);
+      if (services == null) {
+        return proxy.getHttpClientFactory().getGridHttpClient(browserTimeout, browserTimeout);
+      }
+      // the session stays on the same node, the client can be kept for its whole life.
+      current = services.getClientPool().getClient(proxy, browserTimeout, browserTimeout);
+      nodeClient = current;
     }
-    return slot.getProxy().getHttpClientFactory().getGridHttpClient(browserTimeout, browserTimeout);
+    return current;
   }
 
   /**
@@ -226,6 +256,9 @@ public class TestSession {
 
       HttpResponse proxyResponse = sendRequestToNode(proxyRequest);
       lastActivity = timeSource.currentTimeInMillis();
+      if (slot.getProxy() instanceof NodeHealthListener) {
+        ((NodeHealthListener) slot.getProxy()).nodeResponded(this);
+      }
       HttpEntity responseBody = proxyResponse.getEntity();
       try {
         final int statusCode = proxyResponse.getStatusLine().getStatusCode();
@@ -245,6 +278,7 @@ public class TestSession {
         }
 
         byte[] contentBeingForwarded = null;
+        long writeStart = System.nanoTime();
         if (responseBody != null) {
           try {
             InputStream in;
@@ -262,15 +296,24 @@ public class TestSession {
               in = new ByteArrayInputStream(consumedNewWebDriverSessionBody);
             }
 
-            final byte[] bytes = drainInputStream(in);
-            writeRawBody(response, bytes);
-            contentBeingForwarded = bytes;
+            // the new session responses have to be inspected, they are small anyway.
+            if (request.getRequestType() != RequestType.START_SESSION && isStreamingResponses()) {
+              streamBody(response, in);
+            } else {
+              final byte[] bytes = drainInputStream(in);
+              writeRawBody(response, bytes);
+              contentBeingForwarded = bytes;
+            }
 
           } finally {
             EntityUtils.consume(responseBody);
           }
 
         }
+        HubMetrics metrics = getMetrics();
+        if (metrics != null) {
+          metrics.getResponseWrite().record((System.nanoTime() - writeStart) / 1000);
+        }
 
         if (slot.getProxy() instanceof CommandListener) {
           SeleniumBasedResponse wrappedResponse = new SeleniumBasedResponse(response);
@@ -324,8 +367,7 @@ public class TestSession {
           consumedData = ByteStreams.toByteArray(stream);
           stream.close();
 
-          String contentString = new String(consumedData, Charsets.UTF_8);
-          ExternalSessionKey key = ExternalSessionKey.fromJsonResponseBody(contentString);
+          ExternalSessionKey key = ExternalSessionKey.fromJsonResponseBody(consumedData);
           if (key == null) {
             throw new GridException(
                 "webdriver new session JSON response body did not contain a session ID");
@@ -368,7 +410,35 @@ public class TestSession {
     URL remoteURL = slot.getRemoteURL();
     HttpHost host = new HttpHost(remoteURL.getHost(), remoteURL.getPort());
 
-    return client.execute(host, proxyRequest);
+    long start = System.nanoTime();
+    HttpResponse response = client.execute(host, proxyRequest);
+    HubMetrics metrics = getMetrics();
+    if (metrics != null) {
+      metrics.getNodeRoundTrip().record((System.nanoTime() - start) / 1000);
+    }
+    return response;
+  }
+
+  private HubMetrics getMetrics() {
+    HubServices services = HubServices.of(slot.getProxy());
+    return services == null ? null : services.getMetrics();
+  }
+
+  /**
+   * records the termination of this session in the metrics of the hub.
+   */
+  void terminated(SessionTerminationReason reason) {
+    HubMetrics metrics = getMetrics();
+    if (metrics == null) {
+      return;
+    }
+    if (reason != null) {
+      metrics.sessionTerminated(reason);
+    }
+    if (sessionCreatedAt != 0) {
+      metrics.getSessionLifetime()
+          .record((timeSource.currentTimeInMillis() - sessionCreatedAt) * 1000);
+    }
   }
 
   private HttpRequest prepareProxyRequest(HttpServletRequest request
@@ -441,6 +511,42 @@ public class TestSession {
     }
   }
 
+  /**
+   * a CommandListener may read the forwarded content in afterCommand, so the responses of its
+   * proxy are always read fully, unless it is a {@link StreamingCommandListener}.
+   */
+  private boolean isStreamingResponses() {
+    RemoteProxy proxy = slot.getProxy();
+    if (proxy instanceof CommandListener && !(proxy instanceof StreamingCommandListener)) {
+      return false;
+    }
+    return proxy.getRegistry().getConfiguration().isStreamResponses();
+  }
+
+  /**
+   * Copies the node response to the client through a pooled buffer. The Content-Length header, if
+   * the node sent one, has already been copied. Otherwise the container will send the response
+   * chunked.
+   */
+  private void streamBody(HttpServletResponse response, InputStream in) throws IOException {
+    OutputStream out = response.getOutputStream();
+    byte[] buffer = STREAMING_BUFFERS.take();
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        try {
+          out.write(buffer, 0, read);
+        } catch (IOException e) {
+          throw new ClientGoneException(e);
+        }
+      }
+    } finally {
+      STREAMING_BUFFERS.release(buffer);
+      in.close();
+      IOUtils.closeQuietly(out);
+    }
+  }
+
   private byte[] drainInputStream(InputStream in) throws IOException {
     try {
       return ByteStreams.toByteArray(in);
@@ -484,7 +590,8 @@ public class TestSession {
       // a
       // single chunk, which isn't all that useful. So, we return the response as a traditional
       // response with a
-      // Content-Length header, obviating the need for the Transfer-Encoding header.
+      // Content-Length header, obviating the need for the Transfer-Encoding header. When the
+      // response is streamed, the container chunks it again itself.
       if (name.equalsIgnoreCase("Transfer-Encoding") && value.equalsIgnoreCase("chunked")) {
         continue;
       }
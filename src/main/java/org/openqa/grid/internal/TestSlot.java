@@ -20,15 +20,21 @@ import com.google.common.base.Throwables;
 
 import org.openqa.grid.common.SeleniumProtocol;
 import org.openqa.grid.common.exception.GridException;
+import org.openqa.grid.internal.listeners.CapacityListener;
 import org.openqa.grid.internal.listeners.TestSessionListener;
+import org.openqa.grid.internal.utils.CapabilityFingerprint;
+import org.openqa.grid.internal.utils.CapabilityKey;
 import org.openqa.grid.internal.utils.CapabilityMatcher;
 import org.openqa.grid.internal.utils.GridHubConfiguration;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
+import org.openqa.grid.internal.utils.SlotCapabilities;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.InvalidParameterException;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
@@ -56,10 +62,15 @@ public class TestSlot {
   private final SeleniumProtocol protocol;
   private final String path;
   private final CapabilityMatcher matcher;
+  // null unless the default matcher is used.
+  private final SlotCapabilities compiledCapabilities;
+  private final CapabilityFingerprint fingerprint;
   private final Lock lock = new ReentrantLock();
 
   private volatile TestSession currentSession;
   volatile boolean beingReleased = false;
+  // true while the slot is in the idle stack of its proxy.
+  final AtomicBoolean idleListed = new AtomicBoolean(false);
   private boolean showWarning = false;
 
 
@@ -76,6 +87,9 @@ public class TestSlot {
     }
     matcher = proxy.getCapabilityHelper();
     this.capabilities = capabilities;
+    compiledCapabilities =
+        CapabilityKey.isKeyedBy(matcher) ? SlotCapabilities.of(capabilities) : null;
+    fingerprint = CapabilityFingerprint.of(capabilities);
   }
 
   public Map<String, Object> getCapabilities() {
@@ -101,6 +115,7 @@ public class TestSlot {
    * @return a new session linked to that testSlot if possible, null otherwise.
    */
   public TestSession getNewSession(Map<String, Object> desiredCapabilities) {
+    TestSession session = null;
     try {
       lock.lock();
       if (currentSession != null) {
@@ -108,7 +123,7 @@ public class TestSlot {
       } else {
         if (matches(desiredCapabilities)) {
           log.info("Trying to create a new session on test slot " + this.capabilities);
-          TestSession session = new TestSession(this, desiredCapabilities, new DefaultTimeSource());
+          session = new TestSession(this, desiredCapabilities, new DefaultTimeSource());
           currentSession = session;
           return session;
         } else {
@@ -117,6 +132,15 @@ public class TestSlot {
       }
     } finally {
       lock.unlock();
+      if (session != null) {
+        if (proxy instanceof BaseRemoteProxy) {
+          ((BaseRemoteProxy) proxy).slotClaimed(this);
+        }
+        ProxySet proxies = getProxySet();
+        if (proxies != null) {
+          proxies.slotClaimed(proxy);
+        }
+      }
     }
   }
 
@@ -148,9 +172,40 @@ public class TestSlot {
    *         {@link RemoteProxy#getCapabilityHelper()}
    */
   boolean matches(Map<String, Object> desiredCapabilities) {
+    // the compiled match is cheaper than a cache lookup.
+    if (compiledCapabilities == null && desiredCapabilities instanceof RequestedCapabilities) {
+      MatchCache cache = getMatchCache();
+      if (cache != null) {
+        return cache.matches(this, (RequestedCapabilities) desiredCapabilities);
+      }
+    }
+    return computeMatch(desiredCapabilities);
+  }
+
+  boolean computeMatch(Map<String, Object> desiredCapabilities) {
+    if (compiledCapabilities != null && desiredCapabilities instanceof RequestedCapabilities) {
+      return ((RequestedCapabilities) desiredCapabilities).matches(compiledCapabilities);
+    }
     return matcher.matches(capabilities, desiredCapabilities);
   }
 
+  private MatchCache getMatchCache() {
+    HubServices services = HubServices.of(proxy);
+    return services == null ? null : services.getMatchCache();
+  }
+
+  private ProxySet getProxySet() {
+    HubRegistryInterface registry = proxy.getRegistry();
+    return registry == null ? null : registry.getAllProxies();
+  }
+
+  /**
+   * @return the fingerprint of the capabilities of this slot.
+   */
+  CapabilityFingerprint getFingerprint() {
+    return fingerprint;
+  }
+
   /**
    * get the test session currently executed on this test slot.
    * 
@@ -190,7 +245,8 @@ public class TestSlot {
   }
 
   /**
-   * releasing all the resources. The slot can now be reused.
+   * releasing all the resources. The slot can now be reused. If the registry is a
+   * {@link CapacityListener}, it is notified once the slot is free.
    */
   void finishReleaseProcess() {
     try {
@@ -199,11 +255,32 @@ public class TestSlot {
     } finally {
       lock.unlock();
     }
+    HubRegistryInterface registry = proxy.getRegistry();
+    if (registry instanceof CapacityListener) {
+      ((CapacityListener) registry).capacityAvailable(this);
+    }
   }
 
   public void doFinishRelease() {
-    currentSession = null;
-    beingReleased = false;
+    boolean released;
+    try {
+      // can be called directly, without going through finishReleaseProcess.
+      lock.lock();
+      released = currentSession != null;
+      currentSession = null;
+      beingReleased = false;
+    } finally {
+      lock.unlock();
+    }
+    if (released) {
+      if (proxy instanceof BaseRemoteProxy) {
+        ((BaseRemoteProxy) proxy).slotReleased(this);
+      }
+      ProxySet proxies = getProxySet();
+      if (proxies != null) {
+        proxies.slotReleased(proxy);
+      }
+    }
   }
 
   String getInternalKey() {
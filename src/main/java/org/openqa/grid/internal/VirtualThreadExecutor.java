@@ -0,0 +1,139 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.openqa.grid.common.exception.GridConfigurationException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs each request handled by the hub on its own virtual thread, so that the requests waiting in
+ * the new session queue or for a node don't each hold a servlet thread.
+ * <p/>
+ * The number of requests admitted at the same time is bounded, see {@link #tryAdmit(int)}. The
+ * JVM must provide virtual threads ( java 21 and later ). There is no fallback on platform
+ * threads, one per waiting request is what the servlet thread pool is there to bound.
+ */
+@ThreadSafe
+public class VirtualThreadExecutor {
+
+  private final ThreadFactory threadFactory;
+  private final AtomicInteger admitted = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @throws GridConfigurationException if the JVM doesn't provide virtual threads.
+   */
+  public VirtualThreadExecutor() {
+    threadFactory = createVirtualThreadFactory();
+    if (threadFactory == null) {
+      throw new GridConfigurationException(
+          "Virtual threads are not available on java " + System.getProperty("java.version"));
+    }
+  }
+
+  /**
+   * @return true if the JVM provides virtual threads.
+   */
+  public static boolean isAvailable() {
+    return createVirtualThreadFactory() != null;
+  }
+
+  /**
+   * reserves room for a request. A successful call must be followed by a call to
+   * {@link #execute(Runnable)} or {@link #release()}.
+   *
+   * @param maxRequests the maximum number of requests handled at the same time.
+   * @return false if the hub already handles maxRequests requests.
+   */
+  public boolean tryAdmit(int maxRequests) {
+    if (admitted.incrementAndGet() > maxRequests) {
+      admitted.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * runs the admitted request on a new thread, releasing its room once done, or right away if the
+   * thread can't be started.
+   */
+  public void execute(final Runnable request) {
+    Thread t = threadFactory.newThread(new Runnable() {
+      public void run() {
+        try {
+          request.run();
+        } finally {
+          release();
+        }
+      }
+    });
+    try {
+      t.start();
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    } catch (Error e) {
+      release();
+      throw e;
+    }
+  }
+
+  /**
+   * gives back the room reserved for a request that won't be executed.
+   */
+  public void release() {
+    admitted.decrementAndGet();
+  }
+
+  /**
+   * @return the number of requests being handled.
+   */
+  public int getAdmittedCount() {
+    return admitted.get();
+  }
+
+  /**
+   * @return the number of requests turned down because too many were being handled.
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Thread.ofVirtual().name(prefix, 1).factory(), through reflection as the hub is built for
+   * older JVMs.
+   */
+  private static ThreadFactory createVirtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, "Grid request thread ", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal.listeners;
+
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.internal.TestSlot;
+
+/**
+ * To be implemented by the registry. Notified when some capacity to host a new test session
+ * becomes available, so that only the waiting requests able to use that capacity have to be
+ * matched instead of the whole new session queue.
+ * <p/>
+ * The events are sent from the thread releasing the slot or registering the proxy.
+ */
+public interface CapacityListener {
+
+  /**
+   * A test slot has finished its release process and can host a new session.
+   *
+   * @param slot the slot that is now free.
+   */
+  public void capacityAvailable(TestSlot slot);
+
+  /**
+   * A proxy has been added to the grid, all its test slots can host new sessions.
+   *
+   * @param proxy the proxy that registered.
+   */
+  public void capacityAvailable(RemoteProxy proxy);
+
+}
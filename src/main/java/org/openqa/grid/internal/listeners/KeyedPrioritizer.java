@@ -0,0 +1,41 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal.listeners;
+
+import java.util.Map;
+
+/**
+ * A prioritizer that can express the priority of a request as a key, computed once when the
+ * request is queued. The queue then keeps the requests ordered by key instead of sorting them
+ * with {@link #compareTo(Map, Map)} each time it is processed.
+ * <p/>
+ * The keys must be consistent with compareTo: key(a).compareTo(key(b)) has the sign of
+ * compareTo(a, b). The requests are served by ascending key, the requests with equal keys in
+ * arrival order.
+ *
+ * @param <K> the type of the keys.
+ */
+public interface KeyedPrioritizer<K extends Comparable<K>> extends Prioritizer {
+
+  /**
+   * @param capabilities the capabilities of a new session request.
+   * @return the priority key of that request, not null.
+   */
+  public K getPriorityKey(Map<String, Object> capabilities);
+
+}
@@ -0,0 +1,47 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal.listeners;
+
+import org.openqa.grid.internal.SessionTerminationReason;
+import org.openqa.grid.internal.TestSession;
+
+/**
+ * To be implemented by a proxy that wants to learn about the health of its node from the
+ * commands forwarded to it, for instance to skip the status probes of a node that just answered
+ * a command.
+ * <p/>
+ * The events are sent from the thread forwarding the command.
+ */
+public interface NodeHealthListener {
+
+  /**
+   * The node answered a command forwarded by the hub, whatever the status of the answer.
+   *
+   * @param session the session the command belongs to.
+   */
+  public void nodeResponded(TestSession session);
+
+  /**
+   * A command couldn't be forwarded to the node.
+   *
+   * @param session the session the command belongs to.
+   * @param reason  FORWARDING_TO_NODE_FAILED or SO_TIMEOUT.
+   */
+  public void forwardingFailed(TestSession session, SessionTerminationReason reason);
+
+}
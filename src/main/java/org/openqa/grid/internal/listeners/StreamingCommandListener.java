@@ -0,0 +1,28 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal.listeners;
+
+/**
+ * A {@link CommandListener} that doesn't read the forwarded content of the responses, so the hub
+ * can stream the responses of its proxy to the clients when streamResponses is on. The responses
+ * of the proxies implementing only {@link CommandListener} are always read fully, so that
+ * SeleniumBasedResponse.getForwardedContent() stays available in afterCommand.
+ */
+public interface StreamingCommandListener extends CommandListener {
+
+}
@@ -0,0 +1,63 @@
+/*
+Copyright 2007-2011 Selenium committers
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.openqa.grid.internal.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of a full capability map, with its hash computed once. Unlike {@link CapabilityKey}
+ * nothing is normalized, so two equal fingerprints are matched the same way by any
+ * {@link CapabilityMatcher}.
+ */
+public final class CapabilityFingerprint {
+
+  private final Map<String, Object> capabilities;
+  private final int hash;
+
+  private CapabilityFingerprint(Map<String, Object> capabilities) {
+    this.capabilities = Collections.unmodifiableMap(new HashMap<String, Object>(capabilities));
+    this.hash = this.capabilities.hashCode();
+  }
+
+  public static CapabilityFingerprint of(Map<String, Object> capabilities) {
+    return new CapabilityFingerprint(capabilities);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    CapabilityFingerprint that = (CapabilityFingerprint) o;
+    return hash == that.hash && capabilities.equals(that.capabilities);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return capabilities.toString();
+  }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2007-2011 Selenium committers
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.openqa.grid.internal.utils;
+
+import org.openqa.selenium.remote.CapabilityType;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The normalized form of a capability map, restricted to the keys the
+ * {@link DefaultCapabilityMatcher} looks at ( platform, browserName, version and
+ * applicationName ). Wildcard values ( null, "", "*" and "ANY" ) are all normalized to null.
+ * <p/>
+ * Two requests with the same key are matched identically by the {@link DefaultCapabilityMatcher},
+ * which allows grouping them. That property doesn't hold for a custom matcher, see
+ * {@link #isKeyedBy(CapabilityMatcher)}.
+ */
+public final class CapabilityKey {
+
+  static final String[] CONSIDERED_KEYS = {
+      CapabilityType.PLATFORM,
+      CapabilityType.BROWSER_NAME,
+      CapabilityType.VERSION,
+      "applicationName"
+  };
+
+  private final Object[] values;
+  private final int hash;
+
+  private CapabilityKey(Object[] values) {
+    this.values = values;
+    this.hash = Arrays.hashCode(values);
+  }
+
+  /**
+   * @param capabilities the capabilities to normalize, requested or offered by a node.
+   * @return the normalized key for those capabilities.
+   */
+  public static CapabilityKey of(Map<String, Object> capabilities) {
+    Object[] values = new Object[CONSIDERED_KEYS.length];
+    if (capabilities != null) {
+      for (int i = 0; i < CONSIDERED_KEYS.length; i++) {
+        values[i] = normalize(capabilities.get(CONSIDERED_KEYS[i]));
+      }
+    }
+    return new CapabilityKey(values);
+  }
+
+  /**
+   * @param matcher the matcher used by the registry.
+   * @return true if requests sharing a CapabilityKey are guaranteed to be matched the same way by
+   *         that matcher.
+   */
+  public static boolean isKeyedBy(CapabilityMatcher matcher) {
+    return matcher != null && matcher.getClass() == DefaultCapabilityMatcher.class;
+  }
+
+  /**
+   * @return the non wildcard values of the key, by capability name.
+   */
+  public Map<String, Object> asMap() {
+    Map<String, Object> res = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < CONSIDERED_KEYS.length; i++) {
+      if (values[i] != null) {
+        res.put(CONSIDERED_KEYS[i], values[i]);
+      }
+    }
+    return res;
+  }
+
+  static boolean isWildcard(Object value) {
+    if (value == null) {
+      return true;
+    }
+    String s = value.toString();
+    return "ANY".equalsIgnoreCase(s) || "".equals(s) || "*".equals(s);
+  }
+
+  private static Object normalize(Object value) {
+    return isWildcard(value) ? null : value;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    CapabilityKey that = (CapabilityKey) o;
+    return hash == that.hash && Arrays.equals(values, that.values);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder("{");
+    for (int i = 0; i < CONSIDERED_KEYS.length; i++) {
+      if (values[i] != null) {
+        if (b.length() > 1) {
+          b.append(", ");
+        }
+        b.append(CONSIDERED_KEYS[i]).append("=").append(values[i]);
+      }
+    }
+    return b.append("}").toString();
+  }
+}
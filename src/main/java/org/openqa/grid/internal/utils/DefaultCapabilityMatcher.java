@@ -17,11 +17,12 @@ limitations under the License.
 package org.openqa.grid.internal.utils;
 
 import org.openqa.selenium.Platform;
-import org.openqa.selenium.remote.CapabilityType;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -35,15 +36,16 @@ public class DefaultCapabilityMatcher implements CapabilityMatcher {
   private static final Logger log = Logger.getLogger(DefaultCapabilityMatcher.class.getName());
   private static final String GRID_TOKEN = "_";
 
+  // values are clients input, don't let the cache grow forever.
+  private static final int MAX_CACHED_PLATFORM_NAMES = 1024;
+  private static final Object UNKNOWN_PLATFORM = new Object();
+  private static final ConcurrentMap<String, Object> platformsByName =
+      new ConcurrentHashMap<String, Object>();
+
   // temporary fix to only check to most meaningful desiredCapability params
-  private final List<String> toConsider = new ArrayList<String>();
+  private final List<String> toConsider = Arrays.asList(CapabilityKey.CONSIDERED_KEYS);
 
   public DefaultCapabilityMatcher() {
-    toConsider.add(CapabilityType.PLATFORM);
-    toConsider.add(CapabilityType.BROWSER_NAME);
-    toConsider.add(CapabilityType.VERSION);
-    toConsider.add("applicationName");
-
   }
 
   public boolean matches(Map<String, Object> nodeCapability, Map<String, Object> requestedCapability) {
@@ -56,8 +58,7 @@ public class DefaultCapabilityMatcher implements CapabilityMatcher {
       // TODO freynaud only consider version, browser and OS for now
       if (!key.startsWith(GRID_TOKEN) && toConsider.contains(key)) {
         if (requestedCapability.get(key) != null) {
-          String value = requestedCapability.get(key).toString();
-          if (!("ANY".equalsIgnoreCase(value) || "".equals(value) || "*".equals(value))) {
+          if (!CapabilityKey.isWildcard(requestedCapability.get(key))) {
             Platform requested = extractPlatform(requestedCapability.get(key));
             // special case for platform
             if (requested != null) {
@@ -83,6 +84,17 @@ public class DefaultCapabilityMatcher implements CapabilityMatcher {
   }
 
   Platform extractPlatform(Object o) {
+    return resolvePlatform(o);
+  }
+
+  /**
+   * Resolves a capability value to a platform. The resolution of a name is cached, the partial
+   * match against all the platform names being costly.
+   *
+   * @param o the capability value, a Platform or its name.
+   * @return the platform, or null if the value doesn't designate one.
+   */
+  static Platform resolvePlatform(Object o) {
     if (o == null) {
       return null;
     }
@@ -90,23 +102,35 @@ public class DefaultCapabilityMatcher implements CapabilityMatcher {
       return (Platform) o;
     } else if (o instanceof String) {
       String name = o.toString();
-      try {
-        return Platform.valueOf(name);
-      } catch (IllegalArgumentException e) {
-        // no exact match, continue to look for a partial match
+      Object cached = platformsByName.get(name);
+      if (cached != null) {
+        return cached == UNKNOWN_PLATFORM ? null : (Platform) cached;
       }
-      for (Platform os : Platform.values()) {
-        for (String matcher : os.getPartOfOsName()) {
-          if ("".equals(matcher))
-            continue;
-          if (name.equalsIgnoreCase(matcher)) {
-            return os;
-          }
-        }
+      Platform platform = lookupPlatform(name);
+      if (platformsByName.size() < MAX_CACHED_PLATFORM_NAMES) {
+        platformsByName.put(name, platform == null ? UNKNOWN_PLATFORM : platform);
       }
-      return null;
+      return platform;
     } else {
       return null;
     }
   }
+
+  private static Platform lookupPlatform(String name) {
+    try {
+      return Platform.valueOf(name);
+    } catch (IllegalArgumentException e) {
+      // no exact match, continue to look for a partial match
+    }
+    for (Platform os : Platform.values()) {
+      for (String matcher : os.getPartOfOsName()) {
+        if ("".equals(matcher))
+          continue;
+        if (name.equalsIgnoreCase(matcher)) {
+          return os;
+        }
+      }
+    }
+    return null;
+  }
 }
@@ -27,6 +27,7 @@ import org.openqa.grid.common.CommandLineOptionHelper;
 import org.openqa.grid.common.JSONConfigurationUtils;
 import org.openqa.grid.common.RegistrationRequest;
 import org.openqa.grid.common.exception.GridConfigurationException;
+import org.openqa.grid.internal.VirtualThreadExecutor;
 import org.openqa.grid.internal.listeners.Prioritizer;
 import org.openqa.selenium.remote.JsonToBeanConverter;
 import org.yaml.snakeyaml.Yaml;
@@ -96,6 +97,46 @@ public class GridHubConfiguration {
    */
   private boolean throwOnCapabilityNotPresent = true;
 
+  /**
+   * true by default. If true, the responses of the nodes are streamed to the clients instead of
+   * being read fully in memory by the hub first. New session responses, and the responses of the
+   * proxies that are a CommandListener but not a StreamingCommandListener, are always read fully.
+   */
+  private boolean streamResponses = true;
+
+  /**
+   * 0 by default, the commands are forwarded to the nodes on the servlet container threads. If
+   * positive, the servlet thread is released while the command runs on the node, and the command
+   * is forwarded by a pool of that many threads. The threads are still held for the whole node
+   * call, so this moves the limit on the commands in flight rather than removing it: at most that
+   * many commands more wait for a thread, the others get an error.
+   */
+  private int asyncForwardingThreads = 0;
+
+  /**
+   * false by default. If true, each request is handled on its own virtual thread instead of a
+   * servlet thread, including the wait in the new session queue. Needs java 21 or later.
+   */
+  private boolean virtualThreads = false;
+
+  /**
+   * the maximum number of requests handled at the same time on virtual threads. The requests over
+   * that limit are turned down.
+   */
+  private int maxVirtualThreadRequests = 10000;
+
+  /**
+   * how many terminated sessions the hub remembers, to tell the clients still using one of them
+   * why it was terminated.
+   */
+  private int terminatedSessionsRetained = 10000;
+
+  /**
+   * how long in ms the hub remembers a terminated session, within terminatedSessionsRetained. -1 =
+   * until it is one of the terminatedSessionsRetained last ones.
+   */
+  private int terminatedSessionsMaxAge = -1;
+
   /**
    * The filename to use for logging. Default value is <code>null</code> and indicates logging to STDOUT.
    */
@@ -211,6 +252,27 @@ public class GridHubConfiguration {
       throwOnCapabilityNotPresent =
           Boolean.parseBoolean(helper.getParamValue("-throwOnCapabilityNotPresent"));
     }
+    if (helper.isParamPresent("-streamResponses")) {
+      streamResponses = Boolean.parseBoolean(helper.getParamValue("-streamResponses"));
+    }
+    if (helper.isParamPresent("-asyncForwardingThreads")) {
+      asyncForwardingThreads = Integer.parseInt(helper.getParamValue("-asyncForwardingThreads"));
+    }
+    if (helper.isParamPresent("-virtualThreads")) {
+      setVirtualThreads(Boolean.parseBoolean(helper.getParamValue("-virtualThreads")));
+    }
+    if (helper.isParamPresent("-maxVirtualThreadRequests")) {
+      maxVirtualThreadRequests =
+          Integer.parseInt(helper.getParamValue("-maxVirtualThreadRequests"));
+    }
+    if (helper.isParamPresent("-terminatedSessionsRetained")) {
+      terminatedSessionsRetained =
+          Integer.parseInt(helper.getParamValue("-terminatedSessionsRetained"));
+    }
+    if (helper.isParamPresent("-terminatedSessionsMaxAge")) {
+      terminatedSessionsMaxAge =
+          Integer.parseInt(helper.getParamValue("-terminatedSessionsMaxAge"));
+    }
     if (helper.isParamPresent("-prioritizer")) {
       setPrioritizer(helper.getParamValue("-prioritizer"));
     }
@@ -334,6 +396,25 @@ public class GridHubConfiguration {
       if (o.has("throwOnCapabilityNotPresent") && !o.get("throwOnCapabilityNotPresent").isJsonNull()) {
         throwOnCapabilityNotPresent = o.get("throwOnCapabilityNotPresent").getAsBoolean();
       }
+      if (o.has("streamResponses") && !o.get("streamResponses").isJsonNull()) {
+        streamResponses = o.get("streamResponses").getAsBoolean();
+      }
+      if (o.has("asyncForwardingThreads") && !o.get("asyncForwardingThreads").isJsonNull()) {
+        asyncForwardingThreads = o.get("asyncForwardingThreads").getAsInt();
+      }
+      if (o.has("virtualThreads") && !o.get("virtualThreads").isJsonNull()) {
+        setVirtualThreads(o.get("virtualThreads").getAsBoolean());
+      }
+      if (o.has("maxVirtualThreadRequests") && !o.get("maxVirtualThreadRequests").isJsonNull()) {
+        maxVirtualThreadRequests = o.get("maxVirtualThreadRequests").getAsInt();
+      }
+      if (o.has("terminatedSessionsRetained")
+          && !o.get("terminatedSessionsRetained").isJsonNull()) {
+        terminatedSessionsRetained = o.get("terminatedSessionsRetained").getAsInt();
+      }
+      if (o.has("terminatedSessionsMaxAge") && !o.get("terminatedSessionsMaxAge").isJsonNull()) {
+        terminatedSessionsMaxAge = o.get("terminatedSessionsMaxAge").getAsInt();
+      }
 
       // store them all.
       for (Map.Entry<String, JsonElement> entry : o.entrySet()) {
@@ -487,6 +568,61 @@ public class GridHubConfiguration {
     this.throwOnCapabilityNotPresent = throwOnCapabilityNotPresent;
   }
 
+  public boolean isStreamResponses() {
+    return streamResponses;
+  }
+
+  public void setStreamResponses(boolean streamResponses) {
+    this.streamResponses = streamResponses;
+  }
+
+  public int getAsyncForwardingThreads() {
+    return asyncForwardingThreads;
+  }
+
+  public void setAsyncForwardingThreads(int asyncForwardingThreads) {
+    this.asyncForwardingThreads = asyncForwardingThreads;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * @throws GridConfigurationException if turned on and the JVM doesn't provide virtual threads.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    if (virtualThreads && !VirtualThreadExecutor.isAvailable()) {
+      throw new GridConfigurationException("virtualThreads needs java 21 or later, the hub runs on "
+                                           + System.getProperty("java.version"));
+    }
+    this.virtualThreads = virtualThreads;
+  }
+
+  public int getMaxVirtualThreadRequests() {
+    return maxVirtualThreadRequests;
+  }
+
+  public void setMaxVirtualThreadRequests(int maxVirtualThreadRequests) {
+    this.maxVirtualThreadRequests = maxVirtualThreadRequests;
+  }
+
+  public int getTerminatedSessionsRetained() {
+    return terminatedSessionsRetained;
+  }
+
+  public void setTerminatedSessionsRetained(int terminatedSessionsRetained) {
+    this.terminatedSessionsRetained = terminatedSessionsRetained;
+  }
+
+  public int getTerminatedSessionsMaxAge() {
+    return terminatedSessionsMaxAge;
+  }
+
+  public void setTerminatedSessionsMaxAge(int terminatedSessionsMaxAge) {
+    this.terminatedSessionsMaxAge = terminatedSessionsMaxAge;
+  }
+
   public String[] getArgs() {
     return args;
   }
@@ -502,6 +638,12 @@ public class GridHubConfiguration {
     b.append("newSessionWaitTimeout: ").append(newSessionWaitTimeout).append("\n");
     b.append("grid1Mapping: ").append(grid1Mapping).append("\n");
     b.append("throwOnCapabilityNotPresent: ").append(throwOnCapabilityNotPresent).append("\n");
+    b.append("streamResponses: ").append(streamResponses).append("\n");
+    b.append("asyncForwardingThreads: ").append(asyncForwardingThreads).append("\n");
+    b.append("virtualThreads: ").append(virtualThreads).append("\n");
+    b.append("maxVirtualThreadRequests: ").append(maxVirtualThreadRequests).append("\n");
+    b.append("terminatedSessionsRetained: ").append(terminatedSessionsRetained).append("\n");
+    b.append("terminatedSessionsMaxAge: ").append(terminatedSessionsMaxAge).append("\n");
 
     b.append("capabilityMatcher: ")
         .append(matcher == null ? "null" : matcher.getClass().getCanonicalName()).append("\n");
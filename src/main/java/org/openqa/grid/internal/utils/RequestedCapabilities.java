@@ -0,0 +1,158 @@
+/*
+Copyright 2007-2011 Selenium committers
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.openqa.grid.internal.utils;
+
+import com.google.common.collect.ForwardingMap;
+
+import org.openqa.selenium.Platform;
+
+import java.util.Map;
+
+/**
+ * The capabilities requested by a client, along with their compiled form for the
+ * {@link DefaultCapabilityMatcher}. Only the non wildcard values of the keys the matcher
+ * considers are kept, so matching against a {@link SlotCapabilities} is a few equality and
+ * platform checks without any allocation.
+ * <p/>
+ * The map can still be modified, for instance by a TestSessionListener. Changing one of the
+ * considered keys through put/remove recompiles the requested capabilities, any change resets its
+ * {@link #fingerprint()}.
+ */
+public final class RequestedCapabilities extends ForwardingMap<String, Object> {
+
+  private final Map<String, Object> delegate;
+  private volatile Compiled compiled;
+  private volatile CapabilityFingerprint fingerprint;
+
+  private RequestedCapabilities(Map<String, Object> delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * @param capabilities the capabilities requested by the client.
+   * @return a view on those capabilities that can be matched against a slot without reparsing.
+   */
+  public static RequestedCapabilities of(Map<String, Object> capabilities) {
+    if (capabilities instanceof RequestedCapabilities) {
+      return (RequestedCapabilities) capabilities;
+    }
+    return new RequestedCapabilities(capabilities);
+  }
+
+  @Override
+  protected Map<String, Object> delegate() {
+    return delegate;
+  }
+
+  /**
+   * Equivalent to {@link DefaultCapabilityMatcher#matches(Map, Map)} with the slot capabilities
+   * and this map.
+   *
+   * @param slot the pre-processed capabilities of a slot
+   * @return true if the slot can host a session for those capabilities.
+   */
+  public boolean matches(SlotCapabilities slot) {
+    Compiled c = compiled;
+    if (c == null) {
+      c = new Compiled(delegate);
+      compiled = c;
+    }
+    for (int i = 0; i < c.size; i++) {
+      int key = c.keys[i];
+      Platform requested = c.platforms[i];
+      if (requested != null) {
+        Platform node = slot.platforms[key];
+        if (node == null || !node.is(requested)) {
+          return false;
+        }
+      } else if (!c.values[i].equals(slot.values[key])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the fingerprint of the current content of the map.
+   */
+  public CapabilityFingerprint fingerprint() {
+    CapabilityFingerprint f = fingerprint;
+    if (f == null) {
+      f = CapabilityFingerprint.of(delegate);
+      fingerprint = f;
+    }
+    return f;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    Object previous = delegate.put(key, value);
+    invalidate(key);
+    return previous;
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ?> map) {
+    delegate.putAll(map);
+    compiled = null;
+    fingerprint = null;
+  }
+
+  @Override
+  public Object remove(Object key) {
+    Object previous = delegate.remove(key);
+    invalidate(key);
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    delegate.clear();
+    compiled = null;
+    fingerprint = null;
+  }
+
+  private void invalidate(Object key) {
+    fingerprint = null;
+    for (String considered : CapabilityKey.CONSIDERED_KEYS) {
+      if (considered.equals(key)) {
+        compiled = null;
+        return;
+      }
+    }
+  }
+
+  private static class Compiled {
+    private final int[] keys = new int[CapabilityKey.CONSIDERED_KEYS.length];
+    private final Object[] values = new Object[CapabilityKey.CONSIDERED_KEYS.length];
+    private final Platform[] platforms = new Platform[CapabilityKey.CONSIDERED_KEYS.length];
+    private int size = 0;
+
+    Compiled(Map<String, Object> requested) {
+      for (int i = 0; i < CapabilityKey.CONSIDERED_KEYS.length; i++) {
+        Object value = requested.get(CapabilityKey.CONSIDERED_KEYS[i]);
+        if (CapabilityKey.isWildcard(value)) {
+          continue;
+        }
+        keys[size] = i;
+        values[size] = value;
+        platforms[size] = DefaultCapabilityMatcher.resolvePlatform(value);
+        size++;
+      }
+    }
+  }
+}
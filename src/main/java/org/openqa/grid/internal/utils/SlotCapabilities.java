@@ -0,0 +1,49 @@
+/*
+Copyright 2007-2011 Selenium committers
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package org.openqa.grid.internal.utils;
+
+import org.openqa.selenium.Platform;
+
+import java.util.Map;
+
+/**
+ * The capabilities of a test slot, pre-processed once for the {@link DefaultCapabilityMatcher}:
+ * the values of the keys the matcher considers and the platform each of them resolves to.
+ *
+ * @see RequestedCapabilities#matches(SlotCapabilities)
+ */
+public final class SlotCapabilities {
+
+  final Object[] values = new Object[CapabilityKey.CONSIDERED_KEYS.length];
+  final Platform[] platforms = new Platform[CapabilityKey.CONSIDERED_KEYS.length];
+
+  private SlotCapabilities(Map<String, Object> capabilities) {
+    for (int i = 0; i < CapabilityKey.CONSIDERED_KEYS.length; i++) {
+      values[i] = capabilities.get(CapabilityKey.CONSIDERED_KEYS[i]);
+      platforms[i] = DefaultCapabilityMatcher.resolvePlatform(values[i]);
+    }
+  }
+
+  /**
+   * @param capabilities the capabilities of the slot. Changes made to the map afterwards are not
+   *                     seen.
+   * @return the pre-processed capabilities
+   */
+  public static SlotCapabilities of(Map<String, Object> capabilities) {
+    return new SlotCapabilities(capabilities);
+  }
+}
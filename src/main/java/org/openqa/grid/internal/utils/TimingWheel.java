@@ -0,0 +1,258 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.internal.utils;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A timer for a large number of tasks with a coarse precision, like the session timeouts. The
+ * tasks are hashed into the buckets of a wheel by their deadline, and a single thread advances
+ * the wheel one bucket per tick, so scheduling a task is constant time and only the tasks that
+ * expire cost something. Tasks further away than one turn of the wheel wait for the right number
+ * of turns in their bucket.
+ * <p/>
+ * The expired tasks run on a bounded pool of threads, so that a slow task doesn't delay the
+ * others. When the pool and its queue are full, typically when a node with many sessions goes
+ * away, the expired tasks run on the wheel thread itself, which slows the wheel down rather than
+ * starting a thread per task. The wheel thread is started with the first task.
+ */
+@ThreadSafe
+public class TimingWheel {
+
+  private static final Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+  public static final long DEFAULT_TICK_MS = 100;
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+  public static final int DEFAULT_EXPIRATION_THREADS = 16;
+  // the expired tasks waiting for a thread, before they run on the wheel thread.
+  private static final int MAX_QUEUED_EXPIRATIONS = 1024;
+
+  private final String name;
+  private final long tickMs;
+  private final int mask;
+  // only accessed by the wheel thread.
+  private final List<List<Task>> buckets;
+  private final Queue<Task> scheduled = new ConcurrentLinkedQueue<Task>();
+  private final ThreadPoolExecutor expirations;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong expired = new AtomicLong();
+  private final long startNanos = System.nanoTime();
+  private volatile boolean stopped = false;
+  private Thread worker;
+
+  public TimingWheel(String name) {
+    this(name, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, DEFAULT_EXPIRATION_THREADS);
+  }
+
+  /**
+   * @param name              the name of the threads of the wheel.
+   * @param tickMs            the precision of the wheel, in ms.
+   * @param wheelSize         the number of buckets, rounded up to a power of 2.
+   * @param expirationThreads the maximum number of expired tasks running at the same time.
+   */
+  public TimingWheel(String name, long tickMs, int wheelSize, int expirationThreads) {
+    if (tickMs <= 0 || wheelSize <= 0 || expirationThreads <= 0) {
+      throw new IllegalArgumentException(
+          "tick, wheel size and expiration threads must be positive.");
+    }
+    this.name = name;
+    this.tickMs = tickMs;
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize) {
+      size <<= 1;
+    }
+    mask = size - 1;
+    buckets = new ArrayList<List<Task>>(size);
+    for (int i = 0; i < size; i++) {
+      buckets.add(new ArrayList<Task>());
+    }
+    expirations = new ThreadPoolExecutor(
+        expirationThreads, expirationThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(MAX_QUEUED_EXPIRATIONS),
+        new WheelThreadFactory(name + " expiration "), new RunOnWheelThread());
+    expirations.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * runs the task once the delay has elapsed, with the precision of a tick.
+   *
+   * @param task    the task to run, on an expiration thread.
+   * @param delayMs the delay in ms.
+   */
+  public void schedule(Runnable task, long delayMs) {
+    if (stopped) {
+      return;
+    }
+    long deadline = elapsedMs() + Math.max(0, delayMs);
+    pending.incrementAndGet();
+    scheduled.add(new Task(task, deadline));
+    startIfNeeded();
+  }
+
+  /**
+   * @return the number of tasks scheduled and not yet expired.
+   */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * @return the number of tasks that expired since the wheel was created.
+   */
+  public long getExpiredCount() {
+    return expired.get();
+  }
+
+  /**
+   * stops the wheel. The pending tasks are dropped, the running ones are interrupted.
+   */
+  public void stop() {
+    stopped = true;
+    synchronized (this) {
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+    expirations.shutdownNow();
+  }
+
+  private synchronized void startIfNeeded() {
+    if (worker == null && !stopped) {
+      worker = new WheelThreadFactory(name + " ").newThread(new Runnable() {
+        public void run() {
+          turn();
+        }
+      });
+      worker.start();
+    }
+  }
+
+  private long elapsedMs() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  private void turn() {
+    long tick = elapsedMs() / tickMs;
+    while (!stopped) {
+      try {
+        long sleep = (tick + 1) * tickMs - elapsedMs();
+        if (sleep > 0) {
+          Thread.sleep(sleep);
+        }
+      } catch (InterruptedException e) {
+        if (stopped) {
+          return;
+        }
+      }
+      addScheduled(tick);
+      expire(buckets.get((int) (tick & mask)));
+      tick++;
+    }
+  }
+
+  private void addScheduled(long currentTick) {
+    for (Task task = scheduled.poll(); task != null; task = scheduled.poll()) {
+      // a task already late goes in the current bucket.
+      long deadlineTick = Math.max(currentTick, (task.deadline + tickMs - 1) / tickMs);
+      task.remainingTurns = (deadlineTick - currentTick) / buckets.size();
+      buckets.get((int) (deadlineTick & mask)).add(task);
+    }
+  }
+
+  private void expire(List<Task> bucket) {
+    // compacts the tasks staying in the bucket in place.
+    int kept = 0;
+    for (int i = 0; i < bucket.size(); i++) {
+      Task task = bucket.get(i);
+      if (task.remainingTurns > 0) {
+        task.remainingTurns--;
+        bucket.set(kept++, task);
+        continue;
+      }
+      pending.decrementAndGet();
+      expired.incrementAndGet();
+      try {
+        expirations.execute(task.runnable);
+      } catch (RejectedExecutionException e) {
+        if (!stopped) {
+          log.log(Level.WARNING, "Cannot run an expired task of " + name, e);
+        }
+      }
+    }
+    bucket.subList(kept, bucket.size()).clear();
+  }
+
+  private static class Task {
+    private final Runnable runnable;
+    private final long deadline;
+    private long remainingTurns;
+
+    Task(Runnable runnable, long deadline) {
+      this.runnable = runnable;
+      this.deadline = deadline;
+    }
+  }
+
+  /**
+   * runs the expired tasks the pool can't take on the wheel thread, a failing task not stopping
+   * the wheel.
+   */
+  private class RunOnWheelThread implements RejectedExecutionHandler {
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        return;
+      }
+      try {
+        r.run();
+      } catch (Throwable t) {
+        // an Error too, it would kill the wheel thread and no task would expire anymore.
+        log.log(Level.WARNING, "An expired task of " + name + " failed", t);
+      }
+    }
+  }
+
+  private static class WheelThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    WheelThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, prefix + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
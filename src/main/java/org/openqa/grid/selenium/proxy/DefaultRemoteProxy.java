@@ -20,6 +20,8 @@ package org.openqa.grid.selenium.proxy;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -31,10 +33,14 @@ import org.openqa.grid.common.exception.RemoteException;
 import org.openqa.grid.common.exception.RemoteNotReachableException;
 import org.openqa.grid.common.exception.RemoteUnregisterException;
 import org.openqa.grid.internal.BaseRemoteProxy;
+import org.openqa.grid.internal.HealthCheckScheduler;
 import org.openqa.grid.internal.HubRegistryInterface;
+import org.openqa.grid.internal.HubServices;
+import org.openqa.grid.internal.SessionTerminationReason;
 import org.openqa.grid.internal.TestSession;
-import org.openqa.grid.internal.listeners.CommandListener;
+import org.openqa.grid.internal.listeners.NodeHealthListener;
 import org.openqa.grid.internal.listeners.SelfHealingProxy;
+import org.openqa.grid.internal.listeners.StreamingCommandListener;
 import org.openqa.grid.internal.listeners.TestSessionListener;
 import org.openqa.grid.internal.listeners.TimeoutListener;
 import org.openqa.grid.internal.utils.HtmlRenderer;
@@ -51,7 +57,8 @@ import com.google.gson.JsonObject;
  * requests.
  */
 public class DefaultRemoteProxy extends BaseRemoteProxy implements
-    TimeoutListener, SelfHealingProxy, CommandListener, TestSessionListener {
+    TimeoutListener, SelfHealingProxy, StreamingCommandListener, TestSessionListener,
+    NodeHealthListener {
 
   private static final Logger log = Logger.getLogger(DefaultRemoteProxy.class
       .getName());
@@ -113,14 +120,21 @@ public class DefaultRemoteProxy extends BaseRemoteProxy implements
 
   /*
    * Self Healing part. Polls the remote, and marks it down if it cannot be
-   * reached twice in a row.
+   * reached twice in a row. The polls of all the nodes run on the
+   * HealthCheckScheduler of the hub. A node that answered a command within the
+   * polling interval isn't polled, and a command failing to reach the node
+   * brings the next poll forward.
    */
   private volatile boolean down = false;
   private volatile boolean poll = true;
+  // when the node last answered a forwarded command, 0 if it never did.
+  private volatile long lastResponse = 0;
 
   // TODO freynaud
   private List<RemoteException> errors = new CopyOnWriteArrayList<RemoteException>();
-  private Thread pollingThread = null;
+  private volatile Poller poller = null;
+  // polls this node alone when the registry doesn't provide the hub's scheduler.
+  private HealthCheckScheduler ownHealthChecks = null;
 
   public boolean isAlive() {
     try {
@@ -133,52 +147,152 @@ public class DefaultRemoteProxy extends BaseRemoteProxy implements
   }
 
   @Override
-  public void startPolling() {
-    pollingThread = new Thread(new Runnable() { // Thread safety reviewed
-          int failedPollingTries = 0;
-          long downSince = 0;
-
-          @Override
-          public void run() {
-            while (poll) {
-              try {
-                Thread.sleep(pollingInterval);
-                if (!isAlive()) {
-                  if (!down) {
-                    failedPollingTries++;
-                    if (failedPollingTries >= downPollingLimit) {
-                      downSince = System.currentTimeMillis();
-                      addNewEvent(new RemoteNotReachableException(
-                          "Marking the node as down. "
-                              + "Cannot reach the node for "
-                              + failedPollingTries + " tries."));
-                    }
-                  } else {
-                    long downFor = System.currentTimeMillis() - downSince;
-                    if (downFor > unregisterDelay) {
-                      addNewEvent(new RemoteUnregisterException(
-                          "Unregistering the node. It's been down for "
-                              + downFor + " milliseconds."));
-                    }
-                  }
-                } else {
-                  down = false;
-                  failedPollingTries = 0;
-                  downSince = 0;
-                }
-              } catch (InterruptedException e) {
-                return;
-              }
-            }
-          }
-        }, "RemoteProxy failure poller thread for " + getId());
-    pollingThread.start();
+  public synchronized void startPolling() {
+    Poller previous = poller;
+    if (previous != null) {
+      previous.cancel();
+    }
+    poller = new Poller(getHealthChecks());
+    poller.start();
+  }
+
+  private HealthCheckScheduler getHealthChecks() {
+    HubServices services = HubServices.of(this);
+    if (services != null) {
+      return services.getHealthChecks();
+    }
+    if (ownHealthChecks == null) {
+      ownHealthChecks = new HealthCheckScheduler(1);
+    }
+    return ownHealthChecks;
+  }
+
+  @Override
+  public void nodeResponded(TestSession session) {
+    lastResponse = System.currentTimeMillis();
+  }
+
+  @Override
+  public void forwardingFailed(TestSession session, SessionTerminationReason reason) {
+    lastResponse = 0;
+    Poller current = poller;
+    if (current != null) {
+      current.expedite();
+    }
   }
 
   @Override
-  public void stopPolling() {
+  public synchronized void stopPolling() {
     poll = false;
-    pollingThread.interrupt();
+    Poller current = poller;
+    if (current != null) {
+      current.cancel();
+    }
+    if (ownHealthChecks != null) {
+      ownHealthChecks.shutdown();
+      ownHealthChecks = null;
+    }
+  }
+
+  /**
+   * One poll of the node, rescheduling itself after pollingInterval.
+   */
+  private class Poller implements Runnable {
+    private final HealthCheckScheduler scheduler;
+    private volatile Future<?> next;
+    private volatile boolean cancelled = false;
+    private final AtomicBoolean expedited = new AtomicBoolean();
+    // only accessed by the poll in progress.
+    private int failedPollingTries = 0;
+    private long downSince = 0;
+
+    Poller(HealthCheckScheduler scheduler) {
+      this.scheduler = scheduler;
+    }
+
+    void start() {
+      next = scheduler.scheduleFirst(this, pollingInterval);
+    }
+
+    void cancel() {
+      cancelled = true;
+      Future<?> f = next;
+      if (f != null) {
+        f.cancel(true);
+      }
+    }
+
+    /**
+     * polls now rather than at the scheduled time, unless a poll is already
+     * running or brought forward.
+     */
+    void expedite() {
+      if (cancelled || !expedited.compareAndSet(false, true)) {
+        return;
+      }
+      Future<?> f = next;
+      if (f != null && f.cancel(false)) {
+        next = scheduler.schedule(this, 0);
+      } else {
+        expedited.set(false);
+      }
+    }
+
+    @Override
+    public void run() {
+      expedited.set(false);
+      if (!poll || cancelled) {
+        return;
+      }
+      long delay = pollingInterval;
+      long sinceLastResponse = System.currentTimeMillis() - lastResponse;
+      if (!down && sinceLastResponse >= 0 && sinceLastResponse < pollingInterval) {
+        // the node answered a command recently, no need to ask for its status.
+        failedPollingTries = 0;
+        downSince = 0;
+        delay = pollingInterval - sinceLastResponse;
+      } else {
+        try {
+          check();
+        } catch (RuntimeException e) {
+          log.warning("Error polling node " + getId() + ": " + e.getMessage());
+        }
+      }
+      if (poll && !cancelled) {
+        next = scheduler.schedule(this, delay);
+      }
+    }
+
+    private void check() {
+      if (!isAlive()) {
+        if (!down) {
+          failedPollingTries++;
+          if (failedPollingTries >= downPollingLimit) {
+            downSince = System.currentTimeMillis();
+            addNewEvent(new RemoteNotReachableException(
+                "Marking the node as down. "
+                    + "Cannot reach the node for "
+                    + failedPollingTries + " tries."));
+          }
+        } else {
+          long downFor = System.currentTimeMillis() - downSince;
+          if (downFor > unregisterDelay) {
+            addNewEvent(new RemoteUnregisterException(
+                "Unregistering the node. It's been down for "
+                    + downFor + " milliseconds."));
+          }
+        }
+      } else {
+        down = false;
+        failedPollingTries = 0;
+        downSince = 0;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "poll of " + getId();
+    }
   }
 
   @Override
@@ -205,14 +319,11 @@ public class DefaultRemoteProxy extends BaseRemoteProxy implements
   }
 
   /**
-   * overwrites the session allocation to discard the proxy that are down.
+   * discards the proxy from the session allocation while it is down.
    */
   @Override
-  public TestSession getNewSession(Map<String, Object> requestedCapability) {
-    if (down) {
-      return null;
-    }
-    return super.getNewSession(requestedCapability);
+  protected boolean acceptsNewSessions() {
+    return !down;
   }
 
   public boolean isDown() {
@@ -0,0 +1,48 @@
+/*
+Copyright 2011 Selenium committers
+Copyright 2011 Software Freedom Conservancy
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.openqa.grid.web.servlet;
+
+import org.openqa.grid.internal.ProxySet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exposes the capabilities offered by the grid as json, see
+ * {@link org.openqa.grid.internal.CapabilityCatalog}. Meant to be mapped by the hub under
+ * /grid/api/capabilities. It can also be added to the servlets of the hub, it is then available
+ * under /grid/admin/CapabilitiesServlet.
+ */
+public class CapabilitiesServlet extends RegistryBasedServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    ProxySet proxies = getRegistry().getAllProxies();
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getWriter().print(proxies.getCapabilityCatalog().toJson());
+    response.getWriter().close();
+  }
+}
@@ -17,21 +17,31 @@ limitations under the License.
 
 package org.openqa.grid.web.servlet.handler;
 
+import com.google.gson.JsonObject;
+
 import org.openqa.grid.common.exception.ClientGoneException;
 import org.openqa.grid.common.exception.GridException;
 import org.openqa.grid.internal.ExternalSessionKey;
 import org.openqa.grid.internal.HubRegistryInterface;
+import org.openqa.grid.internal.HubServices;
 import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.internal.SessionIdLookup;
 import org.openqa.grid.internal.SessionTerminationReason;
 import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.VirtualThreadExecutor;
 import org.openqa.grid.internal.exception.NewSessionException;
+import org.openqa.grid.internal.listeners.NodeHealthListener;
 import org.openqa.grid.internal.listeners.Prioritizer;
 import org.openqa.grid.internal.listeners.TestSessionListener;
 import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.ErrorCodes;
+import org.seleniumhq.jetty7.continuation.Continuation;
+import org.seleniumhq.jetty7.continuation.ContinuationSupport;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
@@ -44,7 +54,11 @@ import javax.servlet.http.HttpServletResponse;
  * Base stuff to handle the request coming from a remote. 
  *
  * Threading notes; RequestHandlers are instantiated per-request, run on the servlet container
- * thread. The instance is also accessed by the matcher thread.
+ * thread. The instance is also accessed by the matcher thread. When the hub forwards the commands
+ * asynchronously, the commands of existing sessions are forwarded by a thread of the
+ * {@link org.openqa.grid.internal.ForwardingExecutor} after the servlet thread returned. When
+ * the hub runs the requests on virtual threads, the whole request, including the wait for a
+ * slot, is handled by a {@link VirtualThreadExecutor} thread, which {@link #stop()} interrupts.
  */
 @SuppressWarnings("JavaDoc")
 public class RequestHandler implements Comparable<RequestHandler> {
@@ -59,7 +73,13 @@ public class RequestHandler implements Comparable<RequestHandler> {
   private final CountDownLatch sessionAssigned = new CountDownLatch(1);
 
   private static final Logger log = Logger.getLogger(RequestHandler.class.getName());
-  private final Thread waitingThread;
+  // the thread processing the request, null when none is. Guarded by itself, so that stop() never
+  // interrupts a thread that has moved on to something else.
+  private final Object waitingThreadLock = new Object();
+  private Thread waitingThread;
+  private volatile boolean stopped = false;
+  // true once the request has been suspended and handed to another thread.
+  private volatile boolean suspended = false;
 
   
   
@@ -72,6 +92,32 @@ public class RequestHandler implements Comparable<RequestHandler> {
     this.waitingThread = Thread.currentThread();
   }
 
+  /**
+   * the current thread starts processing the request.
+   */
+  private void attachThread() {
+    synchronized (waitingThreadLock) {
+      waitingThread = Thread.currentThread();
+      if (stopped) {
+        // stop() was called before the request reached this thread.
+        waitingThread.interrupt();
+      }
+    }
+  }
+
+  /**
+   * no thread processes the request anymore. An interrupt from stop() that wasn't consumed is
+   * cleared, the thread goes on with something else.
+   */
+  private void detachThread() {
+    synchronized (waitingThreadLock) {
+      if (stopped && waitingThread == Thread.currentThread()) {
+        Thread.interrupted();
+      }
+      waitingThread = null;
+    }
+  }
+
 
 
   /**
@@ -100,6 +146,18 @@ public class RequestHandler implements Comparable<RequestHandler> {
    * forwards the request to the remote, allocating / releasing the resources if necessary.
    */
   public void process() {
+    if (registry.getConfiguration().isVirtualThreads() && handOffToVirtualThread()) {
+      return;
+    }
+    attachThread();
+    try {
+      doProcess();
+    } finally {
+      detachThread();
+    }
+  }
+
+  private void doProcess() {
     switch (request.getRequestType()) {
       case START_SESSION:
         log.info("Got a request to create a new session: "
@@ -125,29 +183,180 @@ public class RequestHandler implements Comparable<RequestHandler> {
           throw new GridException("Session [" + sessionKey + "] not available - "
               + registry.getActiveSessions());
         }
+        Continuation continuation = suspend();
+        if (continuation == null) {
+          forwardToSession();
+        } else {
+          forwardAsync(continuation);
+        }
+        break;
+      default:
+        throw new RuntimeException("NI");
+    }
+  }
+
+
+  private void forwardToSession() {
+    try {
+      forwardRequest(session, this);
+    } catch (ClientGoneException e) {
+      log.log(Level.WARNING, "The client is gone for session " + session + ", terminating");
+      registry.terminate(session, SessionTerminationReason.CLIENT_GONE);
+    } catch (SocketTimeoutException e){
+      log.log(Level.SEVERE, "Socket timed out for session " + session + ", " + e.getMessage());
+      forwardingFailed(SessionTerminationReason.SO_TIMEOUT);
+      registry.terminate(session, SessionTerminationReason.SO_TIMEOUT);
+    } catch (Throwable t) {
+      log.log(Level.SEVERE, "cannot forward the request " + t.getMessage(), t);
+      forwardingFailed(SessionTerminationReason.FORWARDING_TO_NODE_FAILED);
+      registry.terminate(session, SessionTerminationReason.FORWARDING_TO_NODE_FAILED);
+      throw new GridException("cannot forward the request " + t.getMessage(), t);
+    }
+
+    if (request.getRequestType() == RequestType.STOP_SESSION) {
+      registry.terminate(session, SessionTerminationReason.CLIENT_STOPPED_SESSION);
+    }
+  }
+
+  private void forwardingFailed(SessionTerminationReason reason) {
+    RemoteProxy p = session.getSlot().getProxy();
+    if (p instanceof NodeHealthListener) {
+      try {
+        ((NodeHealthListener) p).forwardingFailed(session, reason);
+      } catch (Throwable t) {
+        log.log(Level.WARNING, "Error running the NodeHealthListener: " + t.getMessage(), t);
+      }
+    }
+  }
+
+  /**
+   * suspends the request if the hub forwards the commands asynchronously, so that the servlet
+   * thread is released when process() returns.
+   *
+   * @return the suspended continuation, or null if the command should be forwarded on the current
+   *         thread.
+   */
+  private Continuation suspend() {
+    if (suspended || registry.getConfiguration().getAsyncForwardingThreads() <= 0
+        || HubServices.of(registry) == null) {
+      return null;
+    }
+    return suspendRequest();
+  }
+
+  private Continuation suspendRequest() {
+    try {
+      Continuation continuation = ContinuationSupport.getContinuation(request);
+      // the socket timeout of the node client applies, not the one of the container.
+      continuation.setTimeout(0);
+      continuation.suspend(response);
+      suspended = true;
+      return continuation;
+    } catch (IllegalStateException e) {
+      log.fine("Cannot suspend the request, staying on the servlet thread: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * suspends the request and handles it on a virtual thread, releasing the servlet thread.
+   *
+   * @return false if the request couldn't be suspended and has to be handled on the current
+   *         thread.
+   * @throws GridException if the hub already handles as many requests as it admits.
+   */
+  private boolean handOffToVirtualThread() {
+    HubServices services = HubServices.of(registry);
+    if (services == null) {
+      return false;
+    }
+    VirtualThreadExecutor executor = services.getVirtualThreadExecutor();
+    int max = registry.getConfiguration().getMaxVirtualThreadRequests();
+    if (!executor.tryAdmit(max)) {
+      throw new GridException("The hub is already handling " + max + " requests.");
+    }
+    final Continuation continuation = suspendRequest();
+    if (continuation == null) {
+      executor.release();
+      return false;
+    }
+    Runnable handle = new Runnable() {
+      public void run() {
+        attachThread();
         try {
-          forwardRequest(session, this);
-        } catch (ClientGoneException e) {
-          log.log(Level.WARNING, "The client is gone for session " + session + ", terminating");
-          registry.terminate(session, SessionTerminationReason.CLIENT_GONE);
-        } catch (SocketTimeoutException e){
-          log.log(Level.SEVERE, "Socket timed out for session " + session + ", " + e.getMessage());
-          registry.terminate(session, SessionTerminationReason.SO_TIMEOUT);
+          doProcess();
         } catch (Throwable t) {
-          log.log(Level.SEVERE, "cannot forward the request " + t.getMessage(), t);
-          registry.terminate(session, SessionTerminationReason.FORWARDING_TO_NODE_FAILED);
-          throw new GridException("cannot forward the request " + t.getMessage(), t);
+          sendError(t);
+        } finally {
+          detachThread();
+          continuation.complete();
         }
+      }
+    };
+    // the servlet thread goes back to the container.
+    detachThread();
+    try {
+      executor.execute(handle);
+    } catch (Throwable t) {
+      sendError(t);
+      continuation.complete();
+    }
+    return true;
+  }
 
-        if (request.getRequestType() == RequestType.STOP_SESSION) {
-          registry.terminate(session, SessionTerminationReason.CLIENT_STOPPED_SESSION);
+  private void forwardAsync(final Continuation continuation) {
+    Runnable forward = new Runnable() {
+      public void run() {
+        try {
+          forwardToSession();
+        } catch (Throwable t) {
+          sendError(t);
+        } finally {
+          continuation.complete();
         }
-        break;
-      default:
-        throw new RuntimeException("NI");
+      }
+    };
+    try {
+      // suspend() made sure the registry has its services.
+      HubServices.of(registry).getForwardingExecutor()
+          .execute(forward, registry.getConfiguration().getAsyncForwardingThreads());
+    } catch (RejectedExecutionException e) {
+      log.warning("Cannot forward the command for session " + session + ": " + e.getMessage());
+      sendError(e);
+      continuation.complete();
     }
   }
 
+  /**
+   * reports an error once the servlet returned, which it would otherwise have done.
+   */
+  private void sendError(Throwable t) {
+    if (response.isCommitted()) {
+      log.warning("Cannot report the error to the client, the response is committed: "
+                  + t.getMessage());
+      return;
+    }
+    try {
+      response.reset();
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      response.setCharacterEncoding("UTF-8");
+      if (request instanceof WebDriverRequest) {
+        JsonObject value = new JsonObject();
+        value.addProperty("message", t.getMessage());
+        value.addProperty("class", t.getClass().getCanonicalName());
+        JsonObject error = new JsonObject();
+        error.addProperty("status", ErrorCodes.UNHANDLED_ERROR);
+        error.add("value", value);
+        response.setContentType("application/json");
+        response.getWriter().print(error);
+      } else {
+        response.setContentType("text/plain");
+        response.getWriter().print(t.getMessage());
+      }
+    } catch (IOException e) {
+      log.warning("Error reporting the error to the client: " + e.getMessage());
+    }
+  }
 
   private void cleanup() {
     registry.removeNewSessionRequest(this);
@@ -230,10 +439,19 @@ public class RequestHandler implements Comparable<RequestHandler> {
   public void bindSession(TestSession session) {
     this.session = session;
     sessionAssigned.countDown();
+    HubServices services = HubServices.of(registry);
+    if (services != null) {
+      services.getMetrics().getQueueWait()
+          .record((System.currentTimeMillis() - request.getCreationTime()) * 1000);
+    }
   }
 
   public TestSession getSession() {
+    if (session == null && registry instanceof SessionIdLookup) {
+      session = request.lookupSession((SessionIdLookup) registry);
+    }
     if (session == null) {
+      // also gives the reason why the session is gone.
       ExternalSessionKey externalKey = request.extractSession();
       session = registry.getExistingSession(externalKey);
     }
@@ -254,7 +472,12 @@ public class RequestHandler implements Comparable<RequestHandler> {
   }
 
   public void stop() {
-    waitingThread.interrupt();
+    stopped = true;
+    synchronized (waitingThreadLock) {
+      if (waitingThread != null) {
+        waitingThread.interrupt();
+      }
+    }
   }
 
   @Override
@@ -270,7 +493,12 @@ public class RequestHandler implements Comparable<RequestHandler> {
     b.append("\nmethod: ").append(request.getMethod());
     b.append("\npathInfo: ").append(request.getPathInfo());
     b.append("\nuri: ").append(request.getRequestURI());
-    b.append("\ncontent :").append(request.getBody());
+    if (request.isBodyBuffered()) {
+      b.append("\ncontent :").append(request.getBody());
+    } else {
+      // the body went to the node as a stream, reading it now would consume it or read nothing.
+      b.append("\ncontent length :").append(request.getContentLength());
+    }
     return b.toString();
   }
 
@@ -24,7 +24,9 @@ import com.google.common.io.ByteStreams;
 import org.openqa.grid.common.SeleniumProtocol;
 import org.openqa.grid.internal.ExternalSessionKey;
 import org.openqa.grid.internal.HubRegistryInterface;
+import org.openqa.grid.internal.SessionIdLookup;
 import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.utils.RequestedCapabilities;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -49,10 +51,14 @@ import javax.servlet.http.HttpServletRequestWrapper;
  * details that are selenium related ( type of protocol, new session request
  * etc ) Also allows to change the content of the request, or read it 
  * on the hub.
- * 
+ * <p/>
+ * The body is only read in memory when the hub needs it, for a new session request or a
+ * selenium1 request that carries its session in the body. Otherwise {@link #getInputStream()}
+ * gives the original stream, so the body goes to the node without being copied on the hub.
  */
 public abstract class SeleniumBasedRequest extends HttpServletRequestWrapper {
 
+  // null until the body is read, or set.
   private byte[] body;
   private final HubRegistryInterface registry;
   private final RequestType type;
@@ -94,17 +100,12 @@ public abstract class SeleniumBasedRequest extends HttpServletRequestWrapper {
 
   public SeleniumBasedRequest(HttpServletRequest httpServletRequest, HubRegistryInterface registry) {
     super(httpServletRequest);
-    try {
-      InputStream is = super.getInputStream();
-      setBody(ByteStreams.toByteArray(is));
-    } catch (IOException ex) {
-      throw new RuntimeException(ex);
-    }
     this.registry = registry;
     type = extractRequestType();
 
     if (type == RequestType.START_SESSION) {
-      desiredCapability = extractDesiredCapability();
+      // compiled once here, the request is matched against many slots while it waits.
+      desiredCapability = RequestedCapabilities.of(extractDesiredCapability());
     } else {
       desiredCapability = null;
     }
@@ -127,6 +128,17 @@ public abstract class SeleniumBasedRequest extends HttpServletRequestWrapper {
    */
   public abstract ExternalSessionKey extractSession();
 
+  /**
+   * Finds the session of the request without extracting its key, for the protocols where the key
+   * can be read in place. Like {@link #extractSession()}, not for a new session request.
+   *
+   * @param lookup the active sessions.
+   * @return the session, or null if it wasn't found that way.
+   */
+  public TestSession lookupSession(SessionIdLookup lookup) {
+    return null;
+  }
+
   /**
    * Parse the request to extract the desiredCapabilities. For non web driver protocol ( selenium1 )
    * some mapping will be necessary
@@ -148,6 +160,10 @@ public abstract class SeleniumBasedRequest extends HttpServletRequestWrapper {
 
   @Override
   public ServletInputStream getInputStream() throws IOException {
+    if (body == null) {
+      // nobody needed to look at the body, it can be streamed as is.
+      return super.getInputStream();
+    }
     return new ServletInputStreamImpl(new ByteArrayInputStream(body));
   }
 
@@ -159,14 +175,39 @@ public abstract class SeleniumBasedRequest extends HttpServletRequestWrapper {
   @Override
   public int getContentLength() {
     if (body == null){
-      return 0;  
+      return super.getContentLength();
     }else {
       return body.length;
     }
     
   }
 
+  /**
+   * Reads the body in memory if it hasn't been read yet. Once that's done, the request is forwarded
+   * from that copy.
+   */
+  private byte[] readBody() {
+    if (body == null) {
+      try {
+        InputStream is = super.getInputStream();
+        setBody(is == null ? new byte[0] : ByteStreams.toByteArray(is));
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+    return body;
+  }
+
+  /**
+   * @return true if the body has been read in memory, or set. Otherwise reading it consumes the
+   *         stream meant for the node.
+   */
+  public boolean isBodyBuffered() {
+    return body != null;
+  }
+
   public String getBody() {
+    byte[] body = readBody();
     try {
       Charset charset = Charset.forName(encoding);
       CharsetDecoder decoder = charset.newDecoder();
@@ -197,7 +238,8 @@ public abstract class SeleniumBasedRequest extends HttpServletRequestWrapper {
     StringBuilder builder = new StringBuilder();
     builder.append("["+format.format(new Date(timestamp))+"] ");
     builder.append(getMethod().toUpperCase() +" "+getPathInfo()+"   ");
-    if (getBody() != null && !getBody().isEmpty()) {
+    // don't read a body that is meant to be streamed just to log it.
+    if (isBodyBuffered() && getBody() != null && !getBody().isEmpty()) {
       builder.append(getBody());
     }
     return builder.toString();
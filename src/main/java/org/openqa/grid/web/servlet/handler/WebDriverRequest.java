@@ -26,6 +26,7 @@ import com.google.gson.JsonSyntaxException;
 import org.openqa.grid.common.exception.GridException;
 import org.openqa.grid.internal.ExternalSessionKey;
 import org.openqa.grid.internal.HubRegistryInterface;
+import org.openqa.grid.internal.SessionIdLookup;
 import org.openqa.grid.internal.TestSession;
 import org.openqa.selenium.remote.BeanToJsonConverter;
 import org.openqa.selenium.remote.JsonToBeanConverter;
@@ -45,8 +46,10 @@ public class WebDriverRequest extends SeleniumBasedRequest {
     if ("/session".equals(getPathInfo())) {
       return RequestType.START_SESSION;
     } else if (getMethod().equalsIgnoreCase("DELETE")) {
-      ExternalSessionKey externalKey = ExternalSessionKey.fromWebDriverRequest(getPathInfo());
-      if (getPathInfo().endsWith("/session/" + externalKey.getKey())) {
+      // DELETE .../session/xxx, nothing after the session id.
+      String path = getPathInfo();
+      int start = ExternalSessionKey.webDriverSessionIdStart(path);
+      if (start != -1 && ExternalSessionKey.webDriverSessionIdEnd(path, start) == path.length()) {
         return RequestType.STOP_SESSION;
       }
     }
@@ -62,6 +65,20 @@ public class WebDriverRequest extends SeleniumBasedRequest {
     return ExternalSessionKey.fromWebDriverRequest(path);
   }
 
+  @Override
+  public TestSession lookupSession(SessionIdLookup lookup) {
+    if (getRequestType() == RequestType.START_SESSION) {
+      throw new IllegalAccessError("Cannot call that method of a new session request.");
+    }
+    String path = getPathInfo();
+    int start = ExternalSessionKey.webDriverSessionIdStart(path);
+    if (start == -1) {
+      return null;
+    }
+    return lookup.findSessionByExternalKey(path, start,
+                                           ExternalSessionKey.webDriverSessionIdEnd(path, start));
+  }
+
   @Override
   public Map<String, Object> extractDesiredCapability() {
     String json = getBody();